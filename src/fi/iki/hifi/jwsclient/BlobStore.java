@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content addressed storage, every distinct file is kept once under its SHA-1.
+ *
+ * Cache paths are hard links to the blobs where the filesystem allows it and
+ * plain copies where it does not.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class BlobStore {
+
+    private File root;
+    private boolean links = true;
+
+    public BlobStore(File root) {
+        this.root = root;
+    }
+
+    public File get(String sha1) {
+        sha1 = sha1.toLowerCase();
+        return new File(root, sha1.substring(0, 2) + File.separator + sha1);
+    }
+
+    public boolean contains(String sha1) {
+        return get(sha1).isFile();
+    }
+
+    /**
+     * Moves a file into the store, or drops it if the same content is already there.
+     *
+     * The blob is touched either way, the sweeper leaves young blobs alone
+     * until the launcher that stored one has had time to index it.
+     */
+    public File put(File file, String sha1) throws IOException {
+        File blob = get(sha1);
+
+        if (blob.isFile()) {
+            file.delete();
+            blob.setLastModified(System.currentTimeMillis());
+            return blob;
+        }
+
+        File dir = blob.getParentFile();
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Failed to create blob path: " + dir);
+
+        if (!file.renameTo(blob))
+            throw new IOException("Failed to store " + file + " as " + blob);
+
+        blob.setLastModified(System.currentTimeMillis());
+        return blob;
+    }
+
+    /**
+     * Makes target a view of the blob, replacing whatever was there.
+     */
+    public void link(String sha1, File target) throws IOException {
+        link(get(sha1), target);
+    }
+
+    /**
+     * Makes target a view of any file in the cache, replacing whatever was there.
+     *
+     * The view is made aside and renamed over the target, so a target that
+     * can not be replaced, such as a jar held open on Windows, stays as it was.
+     *
+     * @throws IOException if the target could not be replaced
+     */
+    public void link(File source, File target) throws IOException {
+        File dir = target.getParentFile();
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Failed to create cache path: " + dir);
+
+        File tmp = new File(target.toString() + ".link-" + Long.toHexString(System.nanoTime()));
+
+        try {
+            boolean linked = false;
+
+            if (links) {
+                try {
+                    Files.createLink(tmp.toPath(), source.toPath());
+                    linked = true;
+                } catch (IOException e) {
+                    // FAT, network shares and friends, copy from now on
+                    links = false;
+                } catch (UnsupportedOperationException e) {
+                    links = false;
+                }
+            }
+
+            if (!linked)
+                Files.copy(source.toPath(), tmp.toPath());
+
+            try {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            // left behind when the move failed, or when both already were links to the same blob
+            tmp.delete();
+        }
+    }
+
+    public static String hash(File file) throws IOException {
+        MessageDigest md = digest();
+        update(md, file);
+        return hex(md.digest());
+    }
+
+    /**
+     * A fresh SHA-1 digest, the name blobs are stored under.
+     */
+    public static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to have it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Feeds the whole file to the digest, used to catch up on what was already on disk.
+     */
+    public static void update(MessageDigest md, File file) throws IOException {
+        FileInputStream is = new FileInputStream(file);
+
+        try {
+            byte[] buf = new byte[65536];
+            int len;
+
+            while ((len = is.read(buf)) != -1)
+                md.update(buf, 0, len);
+        } finally {
+            is.close();
+        }
+    }
+
+    public static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < digest.length; i++)
+            sb.append(String.format("%02x", (int)digest[i] & 0xFF));
+
+        return sb.toString();
+    }
+}
@@ -15,39 +15,70 @@
  */
 package fi.iki.hifi.jwsclient;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  *
  * @author Toni Spets <toni.spets@iki.fi>
  */
 public class Cache {
-    
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // how stale the last access time of an entry may get before it is rewritten
+    private static final long ACCESS_RESOLUTION = 60 * 60 * 1000;
+
+    // how often to check whether another launcher is done with a file
+    private static final long LOCK_POLL = 100;
+
     private LoadingWindow lw;
     private String root;
     private Map<URL, Boolean> cached;
+    private ConcurrentMap<URL, FutureTask<File>> flights;
+    private ConcurrentMap<URL, GenerationStore> generations;
+    private CacheIndex index;
+    private BlobStore blobs;
+    private NativeStore natives;
+    private long maxAge;
+    private MirrorTransport transport;
+    private long started = System.currentTimeMillis();
     
     public Cache() {
         String systemName = System.getProperty("os.name");
-        cached = new HashMap<URL, Boolean>();
+        cached = new ConcurrentHashMap<URL, Boolean>();
+        flights = new ConcurrentHashMap<URL, FutureTask<File>>();
+        generations = new ConcurrentHashMap<URL, GenerationStore>();
 
         // get a proper path to directory where to save data
         if (systemName.startsWith("Windows")) {
@@ -74,6 +105,15 @@ public class Cache {
             throw new Error("Cache failed to initialize.");
         }
 
+        index = new CacheIndex(new File(root + File.separator + "index"));
+        blobs = new BlobStore(new File(root + File.separator + "blobs"));
+        natives = new NativeStore(new File(root + File.separator + "natives"));
+        transport = new MirrorTransport(Transport.create());
+        maxAge = Long.getLong("jwsclient.max-age", -1);
+
+        // nothing of this launch has opened a cached file yet
+        settle();
+
         System.out.println("Cache initialized at " + root);
     }
 
@@ -102,13 +142,203 @@ public class Cache {
             path.append(part);
         }
 
-        File localFile = new File(path.toString());
-        File localPath = new File(localFile.getParent());
+        return new File(path.toString());
+    }
 
-        if (!localPath.exists() && !localPath.mkdirs())
-                throw new Error("Failed to create cache path: " + localFile.getParent());
+    public File fromResource(Resource resource) {
+        File file = fromURL(resource.getHref());
 
-        return localFile;
+        if (resource.getVersion() == null)
+            return file;
+
+        // same naming as javaws, foo.jar version 1.2 becomes foo__V1.2.jar
+        String name = file.getName();
+        String version = resource.getVersion().replaceAll("[^A-Za-z0-9._-]", "_");
+        int dot = name.lastIndexOf('.');
+
+        if (dot > 0)
+            name = name.substring(0, dot) + "__V" + version + name.substring(dot);
+        else
+            name = name + "__V" + version;
+
+        return new File(file.getParentFile(), name);
+    }
+
+    private String relative(File file) {
+        return file.toString().substring(root.length() + 1);
+    }
+
+    /**
+     * Records what a descriptor uses so the sweeper leaves it alone.
+     */
+    public void setReferences(URL descriptor, List<URL> locations) {
+        CacheIndex.Entry entry = index.get(descriptor.toString());
+        if (entry == null)
+            return;
+
+        List<String> references = new ArrayList<String>();
+        for (URL location : locations)
+            references.add(location.toString());
+
+        if (!references.equals(entry.getReferences())) {
+            entry.setReferences(references);
+            index.put(descriptor.toString(), entry);
+        }
+    }
+
+    /**
+     * Drops garbage and enforces the quota, meant to run after launch.
+     */
+    public void sweep() {
+        // anything used by this launch was touched within the access resolution of the start
+        long quota = Long.getLong("jwsclient.quota", 0) * 1024 * 1024;
+        new CacheSweeper(new File(root), index, blobs, quota, started - ACCESS_RESOLUTION).run();
+
+        // generations of descriptors that are gone go with them
+        Set<String> live = new HashSet<String>();
+        Set<String> contents = new HashSet<String>();
+        for (Map.Entry<String, CacheIndex.Entry> e : index.snapshot().entrySet()) {
+            if (e.getValue().getReferences() != null)
+                live.add(appName(e.getKey()));
+            if (e.getValue().getSha1() != null)
+                contents.add(e.getValue().getSha1());
+        }
+
+        // extracted libraries go once their jar has left the cache
+        natives.retain(contents);
+
+        File[] apps = new File(root, "apps").listFiles();
+        if (apps != null) {
+            for (File app : apps) {
+                GenerationStore store = new GenerationStore(app, blobs);
+                if (!live.contains(app.getName()))
+                    store.retire();
+                store.reclaim();
+            }
+        }
+    }
+
+    /**
+     * The jars of the current generation of an application, null if it has
+     * none matching these resources yet.
+     */
+    public List<File> openGeneration(URL descriptor, List<Resource> resources) {
+        List<GenerationStore.Item> items = new ArrayList<GenerationStore.Item>();
+        for (Resource resource : resources)
+            items.add(new GenerationStore.Item(resource.getLocation().toString(), resource.getSha1(), null, null));
+
+        try {
+            return generations(descriptor).open(items);
+        } catch (IOException e) {
+            System.out.println("Failed to open generation: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stages what is in the cache now as the next generation of an application,
+     * the resources must have been downloaded first.
+     */
+    public void stageGeneration(URL descriptor, List<Resource> resources) throws IOException {
+        List<GenerationStore.Item> items = new ArrayList<GenerationStore.Item>();
+
+        for (Resource resource : resources) {
+            String key = resource.getLocation().toString();
+            CacheIndex.Entry entry = index.get(key);
+            String sha1 = entry != null ? entry.getSha1() : null;
+
+            File dst = fromResource(resource);
+            File source = sha1 != null && blobs.contains(sha1) ? blobs.get(sha1) : dst;
+            if (!source.isFile())
+                throw new IOException("Can not stage " + resource + ", it is not in the cache.");
+
+            items.add(new GenerationStore.Item(key, sha1, source, dst.getName()));
+        }
+
+        generations(descriptor).stage(items);
+    }
+
+    /**
+     * Where the classes in a generation opened with openGeneration are, null if not known.
+     */
+    public PackageIndex openPackageIndex(URL descriptor, List<File> files) {
+        return generations(descriptor).packages(files);
+    }
+
+    /**
+     * The class bundle of a generation opened with openGeneration, null if there is none.
+     */
+    public LaunchBundle openBundle(URL descriptor, List<File> files) {
+        return generations(descriptor).bundle(files);
+    }
+
+    /**
+     * The class data sharing archive of a generation opened with openGeneration,
+     * which may not exist yet, null if there can be none.
+     */
+    public File getClassArchive(URL descriptor, List<File> files, String vm) {
+        return generations(descriptor).archive(files, vm);
+    }
+
+    /**
+     * The launch profile of a generation opened with openGeneration, which
+     * may not exist yet, null if there can be none.
+     */
+    public File getLaunchProfile(URL descriptor, List<File> files) {
+        return generations(descriptor).profile(files);
+    }
+
+    /**
+     * The directory with the extracted libraries of a nativelib jar, downloaded first if need be.
+     */
+    public File extractNatives(Resource lib) throws IOException {
+        File file = download(lib, false);
+
+        String sha1 = getSha1(lib.getLocation());
+        if (sha1 == null)
+            sha1 = BlobStore.hash(file);
+
+        return natives.extract(file, sha1);
+    }
+
+    private GenerationStore generations(URL descriptor) {
+        GenerationStore store = generations.get(descriptor);
+
+        if (store == null) {
+            store = new GenerationStore(new File(root + File.separator + "apps" + File.separator + appName(descriptor.toString())), blobs);
+            GenerationStore existing = generations.putIfAbsent(descriptor, store);
+            if (existing != null)
+                store = existing;
+        }
+
+        return store;
+    }
+
+    private static String appName(String descriptor) {
+        try {
+            return BlobStore.hex(BlobStore.digest().digest(descriptor.getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean isCached(URL url) {
+        return index.get(url.toString()) != null || fromURL(url).exists();
+    }
+
+    /**
+     * True if the resource has been downloaded at some point, fresh or not.
+     */
+    public boolean isDownloaded(Resource resource) {
+        return index.get(resource.getLocation().toString()) != null;
+    }
+
+    /**
+     * The content of a downloaded resource as the index knows it, null if not known.
+     */
+    public String getSha1(URL url) {
+        CacheIndex.Entry entry = index.get(url.toString());
+        return entry != null ? entry.getSha1() : null;
     }
 
     public File fromFile(File file) throws NoSuchAlgorithmException, FileNotFoundException, IOException {
@@ -116,24 +346,11 @@ public class Cache {
         if (!file.isFile())
             throw new IllegalArgumentException("File must be a regular file.");
 
-        FileInputStream is = new FileInputStream(file);
-        MessageDigest md = MessageDigest.getInstance("SHA-1");
         StringBuilder path = new StringBuilder();
 
         path.append(root);
         path.append(File.separator);
-
-        byte[] buf = new byte[4096];
-        int len;
-        while ((len = is.read(buf)) != -1) {
-            md.update(buf, 0, len);
-        }
-
-        byte[] digest = md.digest();
-        for (int i = 0; i < digest.length; i++) {
-            path.append(String.format("%02x", (int)digest[i] & 0xFF));
-        }
-
+        path.append(digest(file));
         path.append(File.separator);
         path.append(file.getName());
 
@@ -146,6 +363,41 @@ public class Cache {
         return localFile;
     }
 
+    /**
+     * SHA-1 of a local file, only read again when its size or mtime changes.
+     */
+    private String digest(File file) throws IOException {
+        String key = "file:" + file.getAbsolutePath();
+        String mtime = Long.toString(file.lastModified());
+        CacheIndex.Entry entry = index.get(key);
+
+        if (entry != null && entry.getLength() == file.length() && mtime.equals(entry.getLastModified()))
+            return entry.getSha1();
+
+        entry = new CacheIndex.Entry();
+        entry.setLength(file.length());
+        // milliseconds rather than an HTTP date, it never goes on the wire
+        entry.setLastModified(mtime);
+        entry.setSha1(BlobStore.hash(file));
+        index.put(key, entry);
+
+        return entry.getSha1();
+    }
+
+    /**
+     * Overrides the server provided freshness lifetime, negative restores the headers.
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Lets resources under codebase come from the mirrors as well.
+     */
+    public void addMirrors(String codebase, List<String> mirrors) {
+        transport.addMirrors(codebase, mirrors);
+    }
+
     public void setWindow(LoadingWindow lw) {
         this.lw = lw;
     }
@@ -155,119 +407,586 @@ public class Cache {
     }
 
     public File download(URL url, boolean force) throws IOException {
-        File dst = fromURL(url);
-        File newDst = new File(dst.toString() + ".new");
+        return download(new Resource(url), force, null);
+    }
 
-        // no force downloading, will only download if local file is missing
+    public File download(Resource resource, boolean force) throws IOException {
+        return download(resource, force, null);
+    }
+
+    public List<File> downloadAll(List<Resource> resources, boolean force) throws IOException {
+        int connections = Integer.getInteger("jwsclient.connections", 4);
+
+        // requests to an HTTP/2 host share one connection, revalidating side by side costs nothing extra
+        if (!resources.isEmpty() && transport.isMultiplexed(resources.get(0).getLocation()))
+            connections = Math.max(connections, Integer.getInteger("jwsclient.streams", 16));
+
+        return downloadAll(resources, force, connections, null);
+    }
+
+    /**
+     * Downloads over at most the given number of connections, held back by the throttle if one is given.
+     * A throttled batch does not split files into segments.
+     */
+    public List<File> downloadAll(List<Resource> resources, boolean force, int connections, Throttle throttle) throws IOException {
+        connections = Math.max(1, connections);
+
+        final boolean finalForce = force;
+        final DownloadProgress progress = new DownloadProgress(lw, "Loading " + resources.size() + " files...", throttle);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections, Math.max(1, resources.size())));
+        List<Future<File>> futures = new ArrayList<Future<File>>();
+
+        try {
+            for (Resource resource : resources) {
+                final Resource finalResource = resource;
+                futures.add(executor.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        return download(finalResource, finalForce, progress);
+                    }
+                }));
+            }
+
+            List<File> files = new ArrayList<File>();
+            IOException failure = null;
+
+            // wait for everything even on failure so no transfer is left writing behind our back
+            for (Future<File> future : futures) {
+                try {
+                    files.add(future.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException
+                            ? (IOException)e.getCause()
+                            : new IOException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while downloading.");
+                }
+            }
+
+            if (failure != null)
+                throw failure;
+
+            return files;
+        } finally {
+            executor.shutdownNow();
+            progress.end();
+        }
+    }
+
+    private File download(final Resource resource, final boolean force, final DownloadProgress batch) throws IOException {
+        URL url = resource.getLocation();
+
+        // the common case on launch, nothing to coordinate when the index already has it
         if (!force) {
+            CacheIndex.Entry entry = index.get(url.toString());
+            if (entry != null && (resource.getSha1() == null || resource.getSha1().equals(entry.getSha1()))) {
+                long now = System.currentTimeMillis();
 
-            // use .new files automatically, this mechanism is to prevent locking
-            if (newDst.exists()) {
-                if (dst.exists())
-                    dst.delete();
-                newDst.renameTo(dst);
+                // the sweeper only needs a rough idea of what is in use
+                if (now - entry.getAccessed() > ACCESS_RESOLUTION) {
+                    entry.setAccessed(now);
+                    index.put(url.toString(), entry);
+                }
+
+                return fromResource(resource);
             }
+        }
 
-            if (dst.exists())
+        // one transfer per resource in this process, everybody else waits for its result
+        FutureTask<File> flight = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return fetch(resource, force, batch);
+            }
+        });
+
+        FutureTask<File> running = flights.putIfAbsent(url, flight);
+        if (running == null) {
+            try {
+                flight.run();
+            } finally {
+                flights.remove(url, flight);
+            }
+            running = flight;
+        }
+
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading.");
+        }
+    }
+
+    private File fetch(Resource resource, boolean force, DownloadProgress batch) throws IOException {
+        URL url = resource.getLocation();
+        File dst = fromResource(resource);
+        long since = System.currentTimeMillis();
+
+        // other launchers share the cache, only one of them may work on a file at a time
+        FileLock lock = lock(dst);
+
+        try {
+            CacheIndex.Entry entry = index.get(url.toString());
+
+            // the process we waited for just brought it up to date
+            if (force && entry != null && entry.getFetched() >= since)
                 return dst;
+
+            return fetch(resource, force, batch, dst, entry);
+        } finally {
+            lock.release();
+            lock.channel().close();
+        }
+    }
+
+    private FileLock lock(File dst) throws IOException {
+        File localPath = dst.getParentFile();
+        if (!localPath.exists() && !localPath.mkdirs())
+                throw new Error("Failed to create cache path: " + localPath);
+
+        FileChannel channel = new RandomAccessFile(dst.toString() + ".lock", "rw").getChannel();
+
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock == null)
+                System.out.println("Waiting for another process to finish " + dst.getName());
+
+            // polling, a blocking lock is refused when our other threads wait on that process
+            while (lock == null) {
+                Thread.sleep(LOCK_POLL);
+                lock = channel.tryLock();
+            }
+
+            return lock;
+        } catch (InterruptedException e) {
+            channel.close();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + dst.getName());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private File fetch(Resource resource, boolean force, DownloadProgress batch, File dst, CacheIndex.Entry entry) throws IOException {
+        URL url = resource.getLocation();
+
+        // no force downloading, will only download if local file is missing
+        if (!force) {
+
+            // the index knows the file is there, no need to ask the disk
+            if (entry != null) {
+
+                // a published hash that does not match means our copy is outdated
+                if (resource.getSha1() == null || resource.getSha1().equals(entry.getSha1()))
+                    return dst;
+            } else if (resource.getSha1() == null && dst.exists()) {
+                // cache from before the index existed
+                return dst;
+            }
         }
 
         // force downloading, make sure the file is up-to-date
-        if (force && cached.containsKey(url))
+        if (cached.put(url, true) != null && force)
+            return dst;
+
+        // still fresh, the server would only tell us what we already know
+        if (force && entry != null && entry.isFresh(maxAge, System.currentTimeMillis()))
             return dst;
 
-        cached.put(url, true);
+        // an exact version is the same bytes forever, so is a published hash
+        if (force && entry != null && (resource.isImmutable() || (resource.getSha1() != null && resource.getSha1().equals(entry.getSha1()))))
+            return dst;
+
+        // some other resource already brought these exact bytes in
+        if (resource.getSha1() != null && blobs.contains(resource.getSha1())) {
+            entry = new CacheIndex.Entry();
+            entry.setPath(relative(dst));
+            entry.setSha1(resource.getSha1());
+            entry.setVersion(resource.getVersion());
+            entry.setLength(blobs.get(resource.getSha1()).length());
+            entry.setFetched(System.currentTimeMillis());
+            install(url, dst, entry);
+            return dst;
+        }
 
-        if (lw != null) {
-            lw.setStatus("Loading " + dst.getName() + "...");
-            lw.setProgress(0);
-            lw.enableProgress(false);
-            lw.setVisible(true);
+        // a new version of a jar we already have can come as a JarDiff against it
+        Resource current = null;
+        if (entry == null && resource.getVersion() != null) {
+            CacheIndex.Entry latest = index.get("latest:" + resource.getHref());
+            if (latest != null && !resource.getVersion().equals(latest.getVersion())) {
+                Resource candidate = new Resource(resource.getHref(), latest.getVersion());
+                CacheIndex.Entry candidateEntry = index.get(candidate.getLocation().toString());
+                if (candidateEntry != null)
+                    current = candidate;
+            }
         }
 
+        // a lone download drives the window by itself, batches share one bar
+        DownloadProgress progress = batch;
+        if (progress == null)
+            progress = new DownloadProgress(lw, "Loading " + dst.getName() + "...");
+
+        progress.begin();
+
+        try {
+            return transfer(resource, current, url, dst, entry, progress);
+        } finally {
+            if (batch == null)
+                progress.end();
+        }
+    }
+
+    private File transfer(Resource resource, Resource current, URL url, File dst, CacheIndex.Entry entry, DownloadProgress progress) throws IOException {
         DateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
-        HttpURLConnection con = (HttpURLConnection)url.openConnection();
 
-        if (dst.exists() && dst.lastModified() > 0) {
-            con.addRequestProperty("If-Modified-Since", df.format(new Date(dst.lastModified())));
+        // pick up where an interrupted transfer left off if we know what it was
+        File tmp = new File(dst.toString() + ".part");
+        String partKey = "part:" + url;
+        CacheIndex.Entry part = index.get(partKey);
+        long offset = part != null ? tmp.length() : 0;
+
+        // a JarDiff is only worth asking for when we are not resuming
+        URL request = url;
+        if (current != null && offset == 0)
+            request = resource.getLocation(current.getVersion());
+
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+
+        if (entry != null) {
+            // our own copies of the validators, the file mtime is not trustworthy behind a CDN
+            if (entry.getETag() != null)
+                headers.put("If-None-Match", entry.getETag());
+            if (entry.getLastModified() != null)
+                headers.put("If-Modified-Since", entry.getLastModified());
+        } else if (dst.exists() && dst.lastModified() > 0) {
+            headers.put("If-Modified-Since", df.format(new Date(dst.lastModified())));
         }
 
-        con.setReadTimeout(5000);
-        con.setConnectTimeout(5000);
+        if (offset > 0) {
+            headers.put("Range", "bytes=" + offset + "-");
+            headers.put("If-Range", part.getETag() != null ? part.getETag() : part.getLastModified());
+        }
 
-        con.connect();
+        // ranges are always about the plain bytes, only full transfers may come compressed
+        if (offset == 0)
+            headers.put("Accept-Encoding", ContentEncoding.accept(url));
+
+        Transport.Response response = transport.get(request, headers);
+
+        if (response.getStatus() == 416) {
+            // our partial file is bogus for this resource, start over
+            response.close();
+            tmp.delete();
+            index.remove(partKey);
+            return transfer(resource, current, url, dst, entry, progress);
+        }
 
-        if (con.getResponseCode() == 304) {
-            if (lw != null)
-                lw.setStatus(null);
+        if (response.getStatus() == 304) {
+            response.close();
+            // whatever was half downloaded is not needed anymore
+            if (part != null) {
+                tmp.delete();
+                index.remove(partKey);
+            }
+
+            if (entry == null) {
+                entry = new CacheIndex.Entry();
+                entry.setPath(relative(dst));
+                entry.setLength(dst.length());
+
+                // the date we asked with still holds, so it can be asked with again
+                entry.setLastModified(headers.get("If-Modified-Since"));
+            }
+
+            updateEntry(entry, response);
+            index.put(url.toString(), entry);
             return dst;
         }
 
-        if (con.getResponseCode() != 200) {
-            throw new IOException(con.getResponseCode() + " " + con.getResponseMessage());
+        // a range we did not ask for, rather start over than stitch garbage
+        if (response.getStatus() == 206 && rangeStart(response) != offset) {
+            response.close();
+            tmp.delete();
+            index.remove(partKey);
+            return transfer(resource, current, url, dst, entry, progress);
         }
 
-        if (lw != null) {
-            lw.setProgress(0);
-            lw.enableProgress(true);
+        // the server must not hand out something else than the exact version we asked for
+        String servedVersion = response.getHeader("x-java-jnlp-version-id");
+        if (resource.isImmutable() && servedVersion != null && !servedVersion.trim().equals(resource.getVersion())) {
+            response.close();
+            throw new IOException("Asked for " + resource + " but got version " + servedVersion);
         }
 
-        InputStream in = new BufferedInputStream(con.getInputStream());
-        File tmp = new File(dst.toString() + ".part");
-        OutputStream out = new FileOutputStream(tmp);
+        // decoded while streaming, so compressed bodies can not be resumed
+        String encoding = ContentEncoding.of(response.getHeader("Content-Encoding"));
+
+        // a patch is downloaded next to the jar and applied once complete
+        String contentType = response.getHeader("Content-Type");
+        boolean jardiff = current != null && contentType != null && contentType.startsWith(JarDiffPatcher.CONTENT_TYPE);
+        File body = jardiff ? new File(dst.toString() + ".diff") : tmp;
+
+        // the server ignored our range or the resource changed, it is a full download then
+        if (response.getStatus() == 200) {
+            offset = 0;
+            part = encoding == null && !jardiff ? partEntry(response) : null;
+            if (part != null) {
+                part.setPath(relative(tmp));
+                part.setFetched(System.currentTimeMillis());
+                index.put(partKey, part);
+            } else {
+                index.remove(partKey);
+            }
+        } else if (response.getStatus() != 206) {
+            response.close();
+            throw new IOException(response.getStatus() + " " + response.getMessage());
+        }
+
+        File localPath = dst.getParentFile();
+        if (!localPath.exists() && !localPath.mkdirs())
+                throw new Error("Failed to create cache path: " + localPath);
 
-        int length = -1;
-        String strLen = con.getHeaderField("Content-Length");
+        long length = -1;
+        String strLen = response.getHeader("Content-Length");
         if (strLen != null) {
-            length = Integer.parseInt(strLen);
+            try {
+                length = Long.parseLong(strLen.trim());
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
         }
 
-        byte[] buf = new byte[4096];
+        if (length >= 0)
+            progress.expect(offset + length);
+        progress.skip(offset);
 
-        int i, pos = 0;
-        while ((i = in.read(buf)) >= 0) {
-            out.write(buf, 0, i);
-            pos += i;
+        long pos = offset;
+        MessageDigest md = null;
+        String validator = part == null ? null : (part.getETag() != null ? part.getETag() : part.getLastModified());
 
-            if (lw != null)
-                lw.setProgress((int)(((double)pos / length) * 1000));
-        }
+        if (encoding != null) {
+            ContentEncoding.CountingInputStream in = new ContentEncoding.CountingInputStream(response.getBody(), progress, length < 0);
+            md = BlobStore.digest();
 
-        out.close();
-        in.close();
+            try {
+                pos = ContentEncoding.decode(encoding, in, body, md);
+            } finally {
+                in.close();
+            }
 
-        try {
-            tmp.setLastModified(df.parse(con.getHeaderField("Last-Modified")).getTime());
-        } catch (Exception e) {
-            // Last-Modified might be missing, then use current time
+            // the advertised length is the one on the wire
+            if (length >= 0 && in.getCount() != length)
+                throw new IOException("Transfer of " + url + " ended after " + in.getCount() + " bytes.");
+        } else if (offset == 0 && !jardiff && (progress == null || !progress.isThrottled()) && SegmentedDownload.accepts(response, length, validator)) {
+            // scattered writes can not be resumed linearly, a failure starts from scratch
+            try {
+                new SegmentedDownload(transport, url, validator, tmp, length, progress).run(response);
+                pos = length;
+            } catch (IOException e) {
+                tmp.delete();
+                index.remove(partKey);
+                throw e;
+            }
+        } else {
+            // hash while the bytes go by, a resumed transfer first catches up on what it already has
+            md = BlobStore.digest();
+            if (offset > 0)
+                BlobStore.update(md, body);
+
+            DigestInputStream in = new DigestInputStream(new ContentEncoding.CountingInputStream(response.getBody(), progress, length < 0), md);
+            RandomAccessFile raf = new RandomAccessFile(body, "rw");
+            FileChannel out = raf.getChannel();
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+
+            // on failure the .part file and its validator stay behind for the next try
             try {
-                tmp.setLastModified(df.parse(con.getHeaderField("Date")).getTime());
-            } catch (Exception e2) {
-                // use whatever local time we have then
+                if (offset == 0)
+                    out.truncate(0);
+
+                // reserve the space up front, the tail is cut off again if we fail
+                if (length >= 0)
+                    raf.setLength(offset + length);
+
+                while ((n = in.read(buf)) > 0) {
+                    ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                    while (bb.hasRemaining())
+                        pos += out.write(bb, pos);
+                }
+            } finally {
+                try {
+                    if (out.size() > pos)
+                        out.truncate(pos);
+                } catch (IOException e) {
+                    // a resume will notice the bogus length and start over
+                }
+
+                raf.close();
+                in.close();
             }
         }
 
-        // use new files if not forcing, background update would possibly lock or crash class loader
-        if (!force) {
-            if (dst.exists())
-                dst.delete();
+        if (encoding == null && length >= 0 && pos != offset + length)
+            throw new IOException("Transfer of " + url + " ended after " + pos + " bytes.");
+
+        String sha1;
+        if (jardiff) {
+            System.out.println("Patching " + current + " to " + resource.getVersion());
+
+            try {
+                sha1 = JarDiffPatcher.apply(fromResource(current), body, tmp, resource.getSha1());
+            } catch (IOException e) {
+                // the whole jar is always there to fall back to
+                System.out.println("Failed to patch " + current + ": " + e.getMessage());
+                tmp.delete();
+                return transfer(resource, null, url, dst, entry, progress);
+            } finally {
+                body.delete();
+            }
 
-            tmp.renameTo(dst);
+            pos = tmp.length();
+        } else if (md != null) {
+            sha1 = BlobStore.hex(md.digest());
         } else {
-            if (newDst.exists())
-                newDst.delete();
+            // segments arrive out of order, nothing to do but read it back
+            sha1 = BlobStore.hash(tmp);
+        }
+
+        index.remove(partKey);
 
-            tmp.renameTo(newDst);
+        if (resource.getSha1() != null && !resource.getSha1().equals(sha1)) {
+            tmp.delete();
+            throw new IOException("Checksum mismatch for " + resource + ", got " + sha1);
         }
 
-        if (lw != null) {
-            lw.setStatus(null);
-            lw.enableProgress(false);
+        // identical content from any URL is stored once
+        blobs.put(tmp, sha1);
+
+        // what a descriptor referenced last time stays pinned until it is parsed again
+        List<String> references = entry != null ? entry.getReferences() : null;
+
+        entry = new CacheIndex.Entry();
+        entry.setReferences(references);
+        entry.setPath(relative(dst));
+        entry.setSha1(sha1);
+        entry.setETag(response.getHeader("ETag"));
+        entry.setLastModified(response.getHeader("Last-Modified"));
+        entry.setVersion(servedVersion != null ? servedVersion.trim() : resource.getVersion());
+        entry.setLength(pos);
+        updateEntry(entry, response);
+
+        // running applications use their generation directory, the cache path is free to change
+        install(url, dst, entry);
+
+        // remember which version to diff against next time
+        if (resource.getVersion() != null) {
+            CacheIndex.Entry latest = new CacheIndex.Entry();
+            latest.setVersion(resource.getVersion());
+            index.put("latest:" + resource.getHref(), latest);
         }
 
         return dst;
     }
 
+    /**
+     * Links the blob of the entry to the cache path and indexes it.
+     *
+     * A cache path that can not be replaced right now, a lazy jar the
+     * application has open on Windows most likely, keeps the old file and
+     * entry. The new entry waits under pending: for the next launch to put
+     * it in place, the transfer itself does not fail over it.
+     */
+    private void install(URL url, File dst, CacheIndex.Entry entry) {
+        try {
+            blobs.link(entry.getSha1(), dst);
+        } catch (IOException e) {
+            System.out.println("Leaving " + dst + " as it is for now: " + e.getMessage());
+            index.put("pending:" + url, entry);
+            return;
+        }
+
+        index.put(url.toString(), entry);
+
+        // whatever was waiting is older than this
+        if (index.get("pending:" + url) != null)
+            index.remove("pending:" + url);
+    }
+
+    /**
+     * Puts downloads in place that could not replace an open file the last time.
+     */
+    private void settle() {
+        for (Map.Entry<String, CacheIndex.Entry> e : index.snapshot().entrySet()) {
+            if (!e.getKey().startsWith("pending:"))
+                continue;
+
+            CacheIndex.Entry entry = e.getValue();
+
+            try {
+                blobs.link(entry.getSha1(), new File(root, entry.getPath()));
+            } catch (IOException ex) {
+                // still open somewhere, another launch tries again
+                continue;
+            }
+
+            index.put(e.getKey().substring("pending:".length()), entry);
+            index.remove(e.getKey());
+        }
+    }
+
+    private long rangeStart(Transport.Response response) {
+        // Content-Range: bytes 100-199/200
+        String range = response.getHeader("Content-Range");
+        if (range == null || !range.startsWith("bytes "))
+            return -1;
+
+        try {
+            return Long.parseLong(range.substring(6, range.indexOf('-')).trim());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private CacheIndex.Entry partEntry(Transport.Response response) {
+        String etag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+
+        // If-Range only works with strong validators
+        if (etag != null && etag.startsWith("W/"))
+            etag = null;
+
+        if (etag == null && lastModified == null)
+            return null;
+
+        CacheIndex.Entry part = new CacheIndex.Entry();
+        part.setETag(etag);
+        part.setLastModified(lastModified);
+        return part;
+    }
+
+    private void updateEntry(CacheIndex.Entry entry, Transport.Response response) {
+        entry.setCacheControl(response.getHeader("Cache-Control"));
+        entry.setExpires(response.getHeader("Expires"));
+        entry.setFetched(System.currentTimeMillis());
+
+        // a 304 may carry fresh validators
+        if (response.getHeader("ETag") != null)
+            entry.setETag(response.getHeader("ETag"));
+        if (response.getHeader("Last-Modified") != null)
+            entry.setLastModified(response.getHeader("Last-Modified"));
+    }
+
     public File copy(File file) throws IOException, NoSuchAlgorithmException {
         File dst = fromFile(file);
 
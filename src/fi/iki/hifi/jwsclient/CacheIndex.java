@@ -0,0 +1,567 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Append-only metadata index of everything in the cache.
+ *
+ * Every change is a record appended to the end of the file, the last record
+ * for a key wins. The file is compacted on open when it has grown too much.
+ *
+ * Several launchers may share one index. Writers take a lock on a file next
+ * to it and first read whatever the others appended, compaction writes a new
+ * generation to the header so readers know to start over. Lookups only open
+ * the file again when its length or mtime changed since it was last read.
+ *
+ * Entries are handed out and taken in as copies, changing one changes
+ * nothing until it is put back.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class CacheIndex {
+
+    private static final int MAGIC = 0x4a575349;
+    private static final int VERSION = 6;
+    private static final int HEADER = 16;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private File file;
+    private File lockFile;
+    private Map<String, Entry> entries;
+    private long generation;
+    private long offset;
+    private int records;
+
+    // what the file looked like when it was last read through
+    private long seenLength = -1;
+    private long seenModified = -1;
+
+    public CacheIndex(File file) {
+        this.file = file;
+        this.lockFile = new File(file.toString() + ".lock");
+        this.entries = new HashMap<String, Entry>();
+
+        FileLock lock = lock();
+
+        try {
+            boolean clean = refresh();
+
+            // rewrite if the tail was torn or there is mostly garbage
+            if (!clean || records > entries.size() * 2 + 64)
+                compact();
+        } finally {
+            release(lock);
+        }
+    }
+
+    public synchronized Entry get(String key) {
+        refreshIfChanged();
+        Entry entry = entries.get(key);
+        return entry != null ? entry.copy() : null;
+    }
+
+    public synchronized Map<String, Entry> snapshot() {
+        refreshIfChanged();
+        Map<String, Entry> copy = new HashMap<String, Entry>();
+        for (Map.Entry<String, Entry> e : entries.entrySet())
+            copy.put(e.getKey(), e.getValue().copy());
+        return copy;
+    }
+
+    public synchronized void put(String key, Entry entry) {
+        FileLock lock = lock();
+
+        try {
+            refresh();
+            entries.put(key, entry.copy());
+            append(PUT, key, entry);
+        } finally {
+            release(lock);
+        }
+    }
+
+    public synchronized void remove(String key) {
+        FileLock lock = lock();
+
+        try {
+            refresh();
+            if (entries.remove(key) != null)
+                append(REMOVE, key, null);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Lookups skip even the header when nobody touched the file, one stat instead of an open.
+     *
+     * A compaction that leaves the length and, on a coarse filesystem, the mtime
+     * alike may go unnoticed here, it kept every entry as it was. Writers always
+     * read the header under the lock.
+     */
+    private void refreshIfChanged() {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (attrs.size() == seenLength && attrs.lastModifiedTime().toMillis() == seenModified)
+                return;
+        } catch (IOException e) {
+            // gone, refresh finds out
+        }
+
+        refresh();
+    }
+
+    /**
+     * Applies records appended since we last looked, returns false if the file is not usable as is.
+     */
+    private boolean refresh() {
+        long length;
+        long modified;
+
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (!attrs.isRegularFile())
+                return false;
+            length = attrs.size();
+            modified = attrs.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return false;
+        }
+
+        if (length < HEADER)
+            return false;
+
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(file, "r");
+
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION)
+                return false;
+
+            // compacted by someone, everything we knew is stale
+            long current = raf.readLong();
+
+            // nothing new, the usual case by far, unless it was compacted to the very same length
+            if (current == generation && length == offset) {
+                seen(length, modified);
+                return true;
+            }
+
+            if (current != generation || length < offset) {
+                entries.clear();
+                records = 0;
+                generation = current;
+                offset = HEADER;
+            }
+
+            byte[] buf = new byte[(int)(length - offset)];
+            raf.seek(offset);
+            raf.readFully(buf);
+
+            ByteArrayInputStream bytes = new ByteArrayInputStream(buf);
+            DataInputStream in = new DataInputStream(bytes);
+
+            while (bytes.available() > 0) {
+                int op = in.read();
+                String key = in.readUTF();
+
+                if (op == PUT) {
+                    entries.put(key, Entry.read(in));
+                } else if (op == REMOVE) {
+                    entries.remove(key);
+                } else {
+                    return false;
+                }
+
+                // only whole records count, a torn one is read again next time
+                offset = length - bytes.available();
+                records++;
+            }
+
+            seen(length, modified);
+            return true;
+        } catch (EOFException e) {
+            // torn write at the end, or one still in progress, everything before it is good
+            return false;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    private void seen(long length, long modified) {
+        seenLength = length;
+        seenModified = modified;
+    }
+
+    private void compact() {
+        File tmp = new File(file.toString() + ".tmp");
+        long next = generation + 1 + new Random().nextInt(Integer.MAX_VALUE);
+
+        try {
+            DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+            tmpOut.writeInt(MAGIC);
+            tmpOut.writeInt(VERSION);
+            tmpOut.writeLong(next);
+
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                tmpOut.writeByte(PUT);
+                tmpOut.writeUTF(e.getKey());
+                e.getValue().write(tmpOut);
+            }
+
+            tmpOut.close();
+
+            if (file.exists())
+                file.delete();
+
+            if (!tmp.renameTo(file))
+                throw new IOException("Failed to replace " + file);
+
+            generation = next;
+            offset = file.length();
+            records = entries.size();
+        } catch (IOException e) {
+            System.out.println("Cache index compaction failed: " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    private void append(byte op, String key, Entry entry) {
+        // the file went away or never was, write it all out instead
+        if (offset == 0 || !file.isFile()) {
+            compact();
+            return;
+        }
+
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(buf);
+
+            record.writeByte(op);
+            record.writeUTF(key);
+            if (entry != null)
+                entry.write(record);
+
+            // one write per record so a crash can only ever tear the last one
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write(buf.toByteArray());
+            } finally {
+                out.close();
+            }
+
+            offset += buf.size();
+            records++;
+        } catch (IOException e) {
+            // the index is only an accelerator, losing a record is not fatal
+            System.out.println("Cache index write failed: " + e.getMessage());
+        }
+    }
+
+    private FileLock lock() {
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(lockFile, "rw");
+
+            // records are tiny, nobody holds this long
+            FileLock lock;
+            while ((lock = raf.getChannel().tryLock()) == null)
+                Thread.sleep(1);
+
+            return lock;
+        } catch (InterruptedException e) {
+            // given up on, the caller goes on unlocked like below
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // no locking on this filesystem, we are on our own then
+        }
+
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) { }
+        }
+
+        return null;
+    }
+
+    private void release(FileLock lock) {
+        if (lock == null)
+            return;
+
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException e) { }
+    }
+
+    /**
+     * Validators and bookkeeping for a single cached resource.
+     */
+    final public static class Entry {
+
+        private String etag;
+        private String lastModified;
+        private String cacheControl;
+        private String expires;
+        private String version;
+        private String sha1;
+        private String path;
+        private List<String> references;
+        private long length = -1;
+        private long fetched;
+        private long accessed;
+
+        public String getETag() {
+            return etag;
+        }
+
+        public void setETag(String etag) {
+            this.etag = etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public void setLastModified(String lastModified) {
+            this.lastModified = lastModified;
+        }
+
+        public String getCacheControl() {
+            return cacheControl;
+        }
+
+        public void setCacheControl(String cacheControl) {
+            this.cacheControl = cacheControl;
+        }
+
+        public String getExpires() {
+            return expires;
+        }
+
+        public void setExpires(String expires) {
+            this.expires = expires;
+        }
+
+        /**
+         * Version of a resource fetched with the version-based download protocol.
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        public void setVersion(String version) {
+            this.version = version;
+        }
+
+        /**
+         * Content hash, also the name of the blob the cached file links to.
+         */
+        public String getSha1() {
+            return sha1;
+        }
+
+        public void setSha1(String sha1) {
+            this.sha1 = sha1;
+        }
+
+        /**
+         * Location of the cached file relative to the cache root.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        /**
+         * Index keys a descriptor uses, null for anything that is not a descriptor.
+         */
+        public List<String> getReferences() {
+            return references;
+        }
+
+        public void setReferences(List<String> references) {
+            this.references = references == null ? null : Collections.unmodifiableList(new ArrayList<String>(references));
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public void setLength(long length) {
+            this.length = length;
+        }
+
+        public long getFetched() {
+            return fetched;
+        }
+
+        public void setFetched(long fetched) {
+            this.fetched = fetched;
+        }
+
+        public long getAccessed() {
+            return Math.max(accessed, fetched);
+        }
+
+        public void setAccessed(long accessed) {
+            this.accessed = accessed;
+        }
+
+        public Entry copy() {
+            Entry entry = new Entry();
+            entry.etag = etag;
+            entry.lastModified = lastModified;
+            entry.cacheControl = cacheControl;
+            entry.expires = expires;
+            entry.version = version;
+            entry.sha1 = sha1;
+            entry.path = path;
+            entry.references = references;
+            entry.length = length;
+            entry.fetched = fetched;
+            entry.accessed = accessed;
+            return entry;
+        }
+
+        /**
+         * Checks if the entry can be used without asking the server.
+         *
+         * @param maxAge lifetime override in seconds, negative to use the response headers
+         */
+        public boolean isFresh(long maxAge, long now) {
+            return now < expiresAt(maxAge);
+        }
+
+        private long expiresAt(long maxAge) {
+            if (maxAge >= 0)
+                return fetched + maxAge * 1000;
+
+            if (cacheControl != null) {
+                for (String directive : cacheControl.split(",")) {
+                    directive = directive.trim().toLowerCase();
+                    if (directive.equals("no-cache") || directive.equals("no-store")) {
+                        return 0;
+                    } else if (directive.startsWith("max-age=")) {
+                        try {
+                            return fetched + Long.parseLong(directive.substring(8).trim()) * 1000;
+                        } catch (NumberFormatException e) {
+                            return 0;
+                        }
+                    }
+                }
+            }
+
+            if (expires != null) {
+                try {
+                    return new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US).parse(expires).getTime();
+                } catch (Exception e) {
+                    // invalid dates mean already expired
+                    return 0;
+                }
+            }
+
+            // no explicit lifetime, always revalidate like before
+            return 0;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            writeString(out, etag);
+            writeString(out, lastModified);
+            writeString(out, cacheControl);
+            writeString(out, expires);
+            writeString(out, version);
+            writeString(out, sha1);
+            writeString(out, path);
+            out.writeInt(references == null ? -1 : references.size());
+            if (references != null) {
+                for (String reference : references)
+                    out.writeUTF(reference);
+            }
+            out.writeLong(length);
+            out.writeLong(fetched);
+            out.writeLong(accessed);
+        }
+
+        private static Entry read(DataInputStream in) throws IOException {
+            Entry entry = new Entry();
+            entry.etag = readString(in);
+            entry.lastModified = readString(in);
+            entry.cacheControl = readString(in);
+            entry.expires = readString(in);
+            entry.version = readString(in);
+            entry.sha1 = readString(in);
+            entry.path = readString(in);
+            int count = in.readInt();
+            if (count >= 0) {
+                List<String> references = new ArrayList<String>(count);
+                for (int i = 0; i < count; i++)
+                    references.add(in.readUTF());
+                entry.references = Collections.unmodifiableList(references);
+            }
+            entry.length = in.readLong();
+            entry.fetched = in.readLong();
+            entry.accessed = in.readLong();
+            return entry;
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null)
+                out.writeUTF(value);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Garbage collection and LRU eviction for the cache.
+ *
+ * Everything is driven by the index, the only directory listing done is a
+ * few blob directories per run looking for blobs the index lost track of.
+ * Resources referenced by a cached descriptor are never evicted, descriptors
+ * themselves are evicted least recently used first when over the quota.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class CacheSweeper {
+
+    // unreferenced entries and leftover partial downloads live this long
+    private static final long ORPHAN_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    // blobs younger than this may still be on their way into the index
+    private static final long BLOB_AGE = 60 * 60 * 1000;
+
+    // blob directories listed per run, all 256 are covered every 16 runs
+    private static final int BLOB_DIRS_PER_RUN = 16;
+
+    private File root;
+    private CacheIndex index;
+    private BlobStore blobs;
+    private long quota;
+    private long started;
+
+    /**
+     * @param quota maximum bytes of content, zero for no limit
+     * @param started entries accessed after this are in use right now and never evicted
+     */
+    public CacheSweeper(File root, CacheIndex index, BlobStore blobs, long quota, long started) {
+        this.root = root;
+        this.index = index;
+        this.blobs = blobs;
+        this.quota = quota;
+        this.started = started;
+    }
+
+    public void run() {
+        long now = System.currentTimeMillis();
+        Map<String, CacheIndex.Entry> entries = index.snapshot();
+        Set<String> evicted = new HashSet<String>();
+
+        // orphans first, old versions and partial downloads nobody asked for in a week
+        Set<String> pinned = pinned(entries, evicted);
+        for (Map.Entry<String, CacheIndex.Entry> e : entries.entrySet()) {
+            CacheIndex.Entry entry = e.getValue();
+            if (entry.getPath() == null || entry.getReferences() != null || pinned.contains(e.getKey()))
+                continue;
+
+            // the path is still the old file of the resource, only its blob waits
+            if (e.getKey().startsWith("pending:"))
+                continue;
+
+            if (entry.getAccessed() < now - ORPHAN_AGE)
+                evict(e.getKey(), entry, evicted);
+        }
+
+        if (quota > 0)
+            enforceQuota(entries, evicted);
+
+        // blobs of evicted entries go right away if nothing else links to them
+        Set<String> live = new HashSet<String>();
+        for (Map.Entry<String, CacheIndex.Entry> e : entries.entrySet()) {
+            if (!evicted.contains(e.getKey()) && e.getValue().getSha1() != null)
+                live.add(e.getValue().getSha1());
+        }
+
+        for (String key : evicted) {
+            String sha1 = entries.get(key).getSha1();
+            if (sha1 != null && !live.contains(sha1))
+                blobs.get(sha1).delete();
+        }
+
+        sweepBlobs(live, now);
+
+        if (!evicted.isEmpty())
+            System.out.println("Cache sweep evicted " + evicted.size() + " entries.");
+    }
+
+    private void enforceQuota(Map<String, CacheIndex.Entry> entries, Set<String> evicted) {
+        long size = size(entries, evicted);
+        if (size <= quota)
+            return;
+
+        List<String> keys = new ArrayList<String>();
+        for (Map.Entry<String, CacheIndex.Entry> e : entries.entrySet()) {
+            if (e.getValue().getPath() != null && !evicted.contains(e.getKey()) && !e.getKey().startsWith("pending:"))
+                keys.add(e.getKey());
+        }
+
+        final Map<String, CacheIndex.Entry> finalEntries = entries;
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long x = finalEntries.get(a).getAccessed();
+                long y = finalEntries.get(b).getAccessed();
+                return x < y ? -1 : (x > y ? 1 : 0);
+            }
+        });
+
+        // evicting a descriptor unpins its resources, so pins are worked out again each time
+        Set<String> pinned = pinned(entries, evicted);
+        for (String key : keys) {
+            if (size <= quota)
+                break;
+
+            CacheIndex.Entry entry = entries.get(key);
+            if (pinned.contains(key) || entry.getAccessed() >= started)
+                continue;
+
+            evict(key, entry, evicted);
+            size = size(entries, evicted);
+
+            if (entry.getReferences() != null)
+                pinned = pinned(entries, evicted);
+        }
+
+        // pinned resources are evicted on a later run once their descriptor is gone
+        if (size > quota)
+            System.out.println("Cache is " + size + " bytes, over the quota of " + quota + " bytes.");
+    }
+
+    private Set<String> pinned(Map<String, CacheIndex.Entry> entries, Set<String> evicted) {
+        Set<String> pinned = new HashSet<String>();
+
+        for (Map.Entry<String, CacheIndex.Entry> e : entries.entrySet()) {
+            if (!evicted.contains(e.getKey()) && e.getValue().getReferences() != null)
+                pinned.addAll(e.getValue().getReferences());
+        }
+
+        return pinned;
+    }
+
+    private long size(Map<String, CacheIndex.Entry> entries, Set<String> evicted) {
+        // linked copies of one blob only take the space once
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        long size = 0;
+
+        for (Map.Entry<String, CacheIndex.Entry> e : entries.entrySet()) {
+            CacheIndex.Entry entry = e.getValue();
+            if (evicted.contains(e.getKey()) || entry.getPath() == null)
+                continue;
+
+            if (entry.getSha1() != null)
+                sizes.put(entry.getSha1(), Math.max(0, entry.getLength()));
+            else
+                size += Math.max(0, entry.getLength());
+        }
+
+        for (Long length : sizes.values())
+            size += length;
+
+        return size;
+    }
+
+    private void evict(String key, CacheIndex.Entry entry, Set<String> evicted) {
+        File file = new File(root, entry.getPath());
+
+        // a file the class loader holds open can not go yet, try again next time
+        if (file.exists() && !file.delete())
+            return;
+
+        new File(file.toString() + ".lock").delete();
+        new File(file.toString() + ".model").delete();
+
+        index.remove(key);
+        evicted.add(key);
+    }
+
+    private void sweepBlobs(Set<String> live, long now) {
+        File blobRoot = new File(root, "blobs");
+        File cursorFile = new File(root, "sweep");
+        int cursor = 0;
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(cursorFile));
+            try {
+                cursor = Integer.parseInt(reader.readLine().trim()) & 0xFF;
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            cursor = 0;
+        }
+
+        for (int i = 0; i < BLOB_DIRS_PER_RUN; i++) {
+            File dir = new File(blobRoot, String.format("%02x", (cursor + i) & 0xFF));
+            File[] files = dir.listFiles();
+            if (files == null)
+                continue;
+
+            for (File blob : files) {
+                if (!live.contains(blob.getName()) && blob.lastModified() < now - BLOB_AGE)
+                    blob.delete();
+            }
+        }
+
+        try {
+            FileWriter fw = new FileWriter(cursorFile);
+            fw.append(Integer.toString((cursor + BLOB_DIRS_PER_RUN) & 0xFF));
+            fw.close();
+        } catch (IOException e) {
+            // starts from the beginning next time
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.jar.JarOutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compressed transfer encodings, decoded while streaming into the cache.
+ *
+ * pack200-gzip is only offered when the running VM still ships the unpacker,
+ * it was removed in Java 14.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class ContentEncoding {
+
+    public static final String GZIP = "gzip";
+    public static final String PACK200_GZIP = "pack200-gzip";
+
+    private static final long CHUNK = 256 * 1024;
+
+    // unpackers are not thread safe, only the way to make one is shared
+    private static Method newUnpacker;
+    private static Method unpack;
+    private static boolean unpackerChecked;
+
+    private ContentEncoding() {
+    }
+
+    public static String accept(URL url) {
+        if (url.getPath().endsWith(".jar") && hasUnpacker())
+            return PACK200_GZIP + ", " + GZIP;
+
+        return GZIP;
+    }
+
+    /**
+     * Returns the encoding of a response, null if it is sent as is.
+     */
+    public static String of(String header) {
+        if (header == null || header.trim().length() == 0 || header.trim().equalsIgnoreCase("identity"))
+            return null;
+
+        return header.trim().toLowerCase();
+    }
+
+    /**
+     * Writes the decoded body to file and returns the decoded length.
+     *
+     * The decoded bytes are fed to md on their way to the file, if one is given.
+     */
+    public static long decode(String encoding, InputStream in, File file, MessageDigest md) throws IOException {
+        if (encoding.equals(GZIP)) {
+            InputStream decoded = new GZIPInputStream(in, 65536);
+            if (md != null)
+                decoded = new DigestInputStream(decoded, md);
+
+            FileOutputStream out = new FileOutputStream(file);
+            byte[] buf = new byte[65536];
+            long pos = 0;
+            int n;
+
+            try {
+                while ((n = decoded.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                    pos += n;
+                }
+            } finally {
+                out.close();
+                decoded.close();
+            }
+
+            return pos;
+        }
+
+        if (encoding.equals(PACK200_GZIP) && hasUnpacker()) {
+            InputStream src = new GZIPInputStream(in, 65536);
+            OutputStream os = new FileOutputStream(file);
+            if (md != null)
+                os = new DigestOutputStream(os, md);
+
+            JarOutputStream out = new JarOutputStream(os);
+
+            try {
+                unpack.invoke(newUnpacker.invoke(null), src, out);
+            } catch (InvocationTargetException e) {
+                throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+            } catch (Exception e) {
+                throw new IOException(e);
+            } finally {
+                out.close();
+                src.close();
+            }
+
+            return file.length();
+        }
+
+        throw new IOException("Unsupported Content-Encoding: " + encoding);
+    }
+
+    private static synchronized boolean hasUnpacker() {
+        if (!unpackerChecked) {
+            unpackerChecked = true;
+            try {
+                newUnpacker = Class.forName("java.util.jar.Pack200").getMethod("newUnpacker");
+                unpack = Class.forName("java.util.jar.Pack200$Unpacker").getMethod("unpack", InputStream.class, JarOutputStream.class);
+            } catch (Exception e) {
+                newUnpacker = null;
+                unpack = null;
+            }
+        }
+
+        return unpack != null;
+    }
+
+    /**
+     * Reports the raw wire bytes of a body to the progress bar, once per
+     * chunk and whatever is left when closed.
+     */
+    public static class CountingInputStream extends FilterInputStream {
+
+        private DownloadProgress progress;
+        private boolean growing;
+        private long count;
+        private long reported;
+
+        public CountingInputStream(InputStream in, DownloadProgress progress) {
+            this(in, progress, false);
+        }
+
+        /**
+         * @param growing the length is not known, the total grows along with what is read
+         */
+        public CountingInputStream(InputStream in, DownloadProgress progress, boolean growing) {
+            super(in);
+            this.progress = progress;
+            this.growing = growing;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int i = super.read(b, off, len);
+            if (i > 0)
+                count(i);
+            return i;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            flush();
+        }
+
+        /**
+         * Reports what was read since the last chunk, for a stream that is not closed.
+         */
+        public void flush() {
+            long bytes = count - reported;
+            reported = count;
+
+            // the bar never overshoots a total that is still growing
+            if (growing)
+                progress.expect(bytes);
+            progress.advance(bytes);
+        }
+
+        private void count(int i) {
+            count += i;
+            if (count - reported >= CHUNK)
+                flush();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte weighted progress shared by one or more concurrent downloads.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class DownloadProgress {
+
+    private LoadingWindow lw;
+    private Throttle throttle;
+    private String status;
+    private boolean started;
+    private boolean enabled;
+    private int value = -1;
+
+    private AtomicLong expected = new AtomicLong();
+    private AtomicLong received = new AtomicLong();
+
+    public DownloadProgress(LoadingWindow lw, String status) {
+        this(lw, status, null);
+    }
+
+    public DownloadProgress(LoadingWindow lw, String status, Throttle throttle) {
+        this.lw = lw;
+        this.status = status;
+        this.throttle = throttle;
+    }
+
+    /**
+     * True for background transfers, which keep to one connection per file.
+     */
+    public boolean isThrottled() {
+        return throttle != null;
+    }
+
+    public synchronized void begin() {
+        if (started || lw == null)
+            return;
+
+        started = true;
+        value = 0;
+        lw.setStatus(status);
+        lw.setProgress(0);
+        lw.enableProgress(false);
+        lw.setVisible(true);
+    }
+
+    public void expect(long bytes) {
+        expected.addAndGet(bytes);
+        update();
+    }
+
+    public void advance(long bytes) {
+        received.addAndGet(bytes);
+        update();
+
+        if (throttle != null)
+            throttle.acquire(bytes);
+    }
+
+    /**
+     * Counts bytes that were already on disk, they cost no bandwidth.
+     */
+    public void skip(long bytes) {
+        received.addAndGet(bytes);
+        update();
+    }
+
+    public synchronized void end() {
+        if (!started)
+            return;
+
+        started = false;
+        enabled = false;
+        lw.setStatus(null);
+        lw.enableProgress(false);
+    }
+
+    private synchronized void update() {
+        if (!started)
+            return;
+
+        if (!enabled) {
+            lw.enableProgress(true);
+            enabled = true;
+        }
+
+        long total = expected.get();
+        int newValue = total > 0 ? (int)Math.min(1000, (received.get() * 1000) / total) : 0;
+
+        // the total still grows while parallel transfers learn their lengths,
+        // the bar waits for it to catch up instead of going back
+        if (newValue > value) {
+            value = newValue;
+            lw.setProgress(newValue);
+        }
+    }
+}
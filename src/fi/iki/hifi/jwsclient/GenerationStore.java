@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Complete, consistent sets of the resources of one application.
+ *
+ * Each generation is a directory of links into the blob store with a
+ * manifest. The "current" pointer file names the generation launches use,
+ * a background update stages a new generation and points "next" at it, and
+ * the next launch flips "next" over "current" with a single rename.
+ *
+ * Generations nobody points at are reclaimed once no running launcher holds
+ * the lock inside them.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class GenerationStore {
+
+    private static final String CURRENT = "current";
+    private static final String NEXT = "next";
+    private static final String MANIFEST = "manifest";
+    private static final String LOCK = "lock";
+    private static final String PACKAGES = "packages";
+    private static final String BUNDLE = "bundle";
+    private static final String ARCHIVE = "classes";
+    private static final String PROFILE = "profile";
+
+    // a generation this young may still be staged by another launcher
+    private static final long STAGING_AGE = 60 * 60 * 1000;
+
+    private File dir;
+    private BlobStore blobs;
+
+    // locks on the generations in use are held until the process exits
+    private List<FileLock> held = new ArrayList<FileLock>();
+
+    public GenerationStore(File dir, BlobStore blobs) {
+        this.dir = dir;
+        this.blobs = blobs;
+    }
+
+    /**
+     * Switches to a staged generation if there is one and returns the files of
+     * the current generation in order, null if it does not have exactly the
+     * given items.
+     */
+    public List<File> open(List<Item> items) throws IOException {
+        File next = new File(dir, NEXT);
+
+        if (next.isFile()) {
+            try {
+                move(next, new File(dir, CURRENT));
+            } catch (NoSuchFileException e) {
+                // another launcher flipped it first
+            }
+        }
+
+        String name = readPointer(CURRENT);
+        if (name == null)
+            return null;
+
+        File generation = new File(dir, name);
+        List<String[]> manifest = readManifest(generation);
+        if (!matches(manifest, items))
+            return null;
+
+        List<File> files = new ArrayList<File>();
+        for (String[] line : manifest)
+            files.add(new File(generation, line[2]));
+
+        hold(generation);
+        return files;
+    }
+
+    /**
+     * Links the items into a new generation and points "next" at it, unless
+     * the newest generation already has exactly them.
+     */
+    public boolean stage(List<Item> items) throws IOException {
+        String latest = readPointer(NEXT);
+        if (latest == null)
+            latest = readPointer(CURRENT);
+
+        if (latest != null && matches(readManifest(new File(dir, latest)), items))
+            return false;
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Failed to create generation path: " + dir);
+
+        // mkdir is atomic, two launchers staging at once end up in different directories
+        String[] existing = dir.list();
+        int n = existing == null ? 1 : existing.length;
+        File generation;
+        while (!(generation = new File(dir, "gen-" + n)).mkdir()) {
+            if (!dir.isDirectory())
+                throw new IOException("Failed to create generation in " + dir);
+            n++;
+        }
+
+        Set<String> names = new HashSet<String>();
+        StringBuilder manifest = new StringBuilder();
+        List<File> files = new ArrayList<File>();
+        List<String> sha1s = new ArrayList<String>();
+
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+
+            // the class path is ordered, only clashing names need telling apart
+            String name = item.name;
+            if (!names.add(name)) {
+                name = i + "-" + name;
+                names.add(name);
+            }
+
+            File file = new File(generation, name);
+            blobs.link(item.source, file);
+            files.add(file);
+            sha1s.add(item.sha1);
+            manifest.append(item.key).append('\t').append(item.sha1 != null ? item.sha1 : "-").append('\t').append(name).append('\n');
+        }
+
+        // lets class lookups go straight to the jars that can have the class
+        PackageIndex packages = new PackageIndex();
+        try {
+            for (File file : files)
+                packages.add(file);
+            packages.write(new File(generation, PACKAGES));
+        } catch (IOException e) {
+            System.out.println("Not indexing " + generation + ": " + e.getMessage());
+        }
+
+        // disk space for less inflating at every launch, only what changed is inflated again
+        if (Boolean.getBoolean("jwsclient.bundle")) {
+            try {
+                LaunchBundle.build(new File(generation, BUNDLE), files, sha1s, latest != null ? new File(new File(dir, latest), BUNDLE) : null);
+            } catch (IOException e) {
+                new File(generation, BUNDLE).delete();
+                System.out.println("Not bundling " + generation + ": " + e.getMessage());
+            }
+        }
+
+        write(new File(generation, MANIFEST), manifest.toString());
+
+        // readers only ever see a complete pointer
+        File tmp = new File(dir, NEXT + "." + generation.getName());
+        write(tmp, generation.getName());
+        move(tmp, new File(dir, NEXT));
+
+        System.out.println("Staged " + generation);
+        return true;
+    }
+
+    /**
+     * The package index of the generation the files came from, null if there is none.
+     */
+    public PackageIndex packages(List<File> files) {
+        if (files.isEmpty() || !dir.equals(files.get(0).getParentFile().getParentFile()))
+            return null;
+
+        return PackageIndex.read(new File(files.get(0).getParentFile(), PACKAGES), files);
+    }
+
+    /**
+     * The bundle of the generation the files came from, null if there is none.
+     */
+    public LaunchBundle bundle(List<File> files) {
+        if (files.isEmpty() || !dir.equals(files.get(0).getParentFile().getParentFile()))
+            return null;
+
+        return LaunchBundle.open(new File(files.get(0).getParentFile(), BUNDLE), files);
+    }
+
+    /**
+     * Where the class data sharing archive of the generation the files came
+     * from goes, one per virtual machine, null if they are not from a generation.
+     */
+    public File archive(List<File> files, String vm) {
+        if (files.isEmpty() || !dir.equals(files.get(0).getParentFile().getParentFile()))
+            return null;
+
+        return new File(files.get(0).getParentFile(), ARCHIVE + "-" + vm + ".jsa");
+    }
+
+    /**
+     * Where the launch profile of the generation the files came from goes,
+     * null if they are not from a generation.
+     */
+    public File profile(List<File> files) {
+        if (files.isEmpty() || !dir.equals(files.get(0).getParentFile().getParentFile()))
+            return null;
+
+        return new File(files.get(0).getParentFile(), PROFILE);
+    }
+
+    /**
+     * Deletes generations that are neither current nor next and not in use.
+     */
+    public void reclaim() {
+        String current = readPointer(CURRENT);
+        String next = readPointer(NEXT);
+        File[] generations = dir.listFiles();
+
+        if (generations == null)
+            return;
+
+        long now = System.currentTimeMillis();
+
+        for (File generation : generations) {
+            if (!generation.isDirectory() || generation.getName().equals(current) || generation.getName().equals(next))
+                continue;
+
+            if (generation.lastModified() > now - STAGING_AGE)
+                continue;
+
+            FileLock lock = exclusive(generation);
+            if (lock == null)
+                continue;
+
+            try {
+                lock.release();
+                lock.channel().close();
+            } catch (IOException e) { }
+
+            File[] files = generation.listFiles();
+            if (files != null) {
+                for (File file : files)
+                    file.delete();
+            }
+
+            generation.delete();
+        }
+
+        // nothing left of a retired application
+        if (current == null && next == null)
+            dir.delete();
+    }
+
+    /**
+     * Drops the pointers, everything goes on the next reclaim.
+     */
+    public void retire() {
+        new File(dir, NEXT).delete();
+        new File(dir, CURRENT).delete();
+    }
+
+    private boolean matches(List<String[]> manifest, List<Item> items) {
+        if (manifest == null || manifest.size() != items.size())
+            return false;
+
+        for (int i = 0; i < items.size(); i++) {
+            String[] line = manifest.get(i);
+            Item item = items.get(i);
+
+            // a launch only knows the hashes the descriptor published
+            if (!line[0].equals(item.key) || (item.sha1 != null && !item.sha1.equals(line[1])))
+                return false;
+        }
+
+        return true;
+    }
+
+    private void hold(File generation) {
+        try {
+            FileChannel channel = new RandomAccessFile(new File(generation, LOCK), "rw").getChannel();
+            FileLock lock = channel.tryLock(0, Long.MAX_VALUE, true);
+
+            // only a reclaim holds it exclusively and only for a moment
+            while (lock == null) {
+                Thread.sleep(10);
+                lock = channel.tryLock(0, Long.MAX_VALUE, true);
+            }
+
+            held.add(lock);
+        } catch (OverlappingFileLockException e) {
+            // we already hold it
+        } catch (Exception e) {
+            System.out.println("Failed to lock " + generation + ": " + e.getMessage());
+        }
+    }
+
+    private FileLock exclusive(File generation) {
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(new File(generation, LOCK), "rw");
+            FileLock lock = raf.getChannel().tryLock();
+            if (lock != null)
+                return lock;
+        } catch (OverlappingFileLockException e) {
+            // this very process is using it
+        } catch (IOException e) {
+            // leave it for the next time
+        }
+
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) { }
+        }
+
+        return null;
+    }
+
+    private String readPointer(String name) {
+        List<String> lines = readLines(new File(dir, name));
+        return lines == null || lines.isEmpty() || lines.get(0).trim().length() == 0 ? null : lines.get(0).trim();
+    }
+
+    private List<String[]> readManifest(File generation) {
+        List<String> lines = readLines(new File(generation, MANIFEST));
+        if (lines == null)
+            return null;
+
+        List<String[]> manifest = new ArrayList<String[]>();
+        for (String line : lines) {
+            String[] fields = line.split("\t");
+            if (fields.length != 3)
+                return null;
+            manifest.add(fields);
+        }
+
+        return manifest;
+    }
+
+    private static List<String> readLines(File file) {
+        if (!file.isFile())
+            return null;
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            List<String> lines = new ArrayList<String>();
+
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() > 0)
+                        lines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+
+            return lines;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * A resource as it appears in a generation.
+     */
+    final public static class Item {
+
+        private String key;
+        private String sha1;
+        private File source;
+        private String name;
+
+        /**
+         * @param key what the resource is known as in the index
+         * @param sha1 the content, null if not known
+         * @param source file to link into the generation, only needed when staging
+         * @param name what to call it inside the generation, only needed when staging
+         */
+        public Item(String key, String sha1, File source, String name) {
+            this.key = key;
+            this.sha1 = sha1;
+            this.source = source;
+            this.name = name;
+        }
+    }
+}
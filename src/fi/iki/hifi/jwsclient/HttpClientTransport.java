@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HTTP/2 over java.net.http.HttpClient, everything to one host shares a
+ * single connection.
+ *
+ * The launcher itself still runs on Java 7, so the client is only reached
+ * through reflection like the pack200 unpacker. The constructor fails on
+ * VMs that do not have it.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class HttpClientTransport extends Transport {
+
+    private Object client;
+    private Object bodyHandler;
+    private Object http2;
+
+    private Method newRequest;
+    private Method header;
+    private Method timeout;
+    private Method build;
+    private Method send;
+    private Method statusCode;
+    private Method version;
+    private Method headers;
+    private Method firstValue;
+    private Method orElse;
+    private Method body;
+    private Method ofMillis;
+
+    // hosts that answered over HTTP/2, requests to them are cheap to run side by side
+    private Set<String> multiplexed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // HttpClient has no read timeout for bodies, stalled ones are closed from here instead
+    private Set<WatchedInputStream> watched = Collections.newSetFromMap(new ConcurrentHashMap<WatchedInputStream, Boolean>());
+    private Timer watchdog;
+
+    public HttpClientTransport(int connectTimeout, int readTimeout, Proxy proxy) throws Exception {
+        super(connectTimeout, readTimeout, proxy);
+
+        Class<?> clientClass = Class.forName("java.net.http.HttpClient");
+        Class<?> clientBuilder = Class.forName("java.net.http.HttpClient$Builder");
+        Class<?> versionClass = Class.forName("java.net.http.HttpClient$Version");
+        Class<?> redirectClass = Class.forName("java.net.http.HttpClient$Redirect");
+        Class<?> requestClass = Class.forName("java.net.http.HttpRequest");
+        Class<?> requestBuilder = Class.forName("java.net.http.HttpRequest$Builder");
+        Class<?> responseClass = Class.forName("java.net.http.HttpResponse");
+        Class<?> handlerClass = Class.forName("java.net.http.HttpResponse$BodyHandler");
+        Class<?> handlersClass = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+        Class<?> headersClass = Class.forName("java.net.http.HttpHeaders");
+        Class<?> durationClass = Class.forName("java.time.Duration");
+        Class<?> optionalClass = Class.forName("java.util.Optional");
+
+        ofMillis = durationClass.getMethod("ofMillis", long.class);
+        http2 = constant(versionClass, "HTTP_2");
+
+        Object builder = clientClass.getMethod("newBuilder").invoke(null);
+        builder = clientBuilder.getMethod("version", versionClass).invoke(builder, http2);
+        builder = clientBuilder.getMethod("followRedirects", redirectClass).invoke(builder, constant(redirectClass, "NORMAL"));
+        builder = clientBuilder.getMethod("connectTimeout", durationClass).invoke(builder, ofMillis.invoke(null, (long)connectTimeout));
+        builder = clientBuilder.getMethod("proxy", ProxySelector.class).invoke(builder, getProxySelector());
+        client = clientBuilder.getMethod("build").invoke(builder);
+
+        newRequest = requestClass.getMethod("newBuilder", URI.class);
+        header = requestBuilder.getMethod("header", String.class, String.class);
+        timeout = requestBuilder.getMethod("timeout", durationClass);
+        build = requestBuilder.getMethod("build");
+        send = clientClass.getMethod("send", requestClass, handlerClass);
+        bodyHandler = handlersClass.getMethod("ofInputStream").invoke(null);
+
+        statusCode = responseClass.getMethod("statusCode");
+        version = responseClass.getMethod("version");
+        headers = responseClass.getMethod("headers");
+        body = responseClass.getMethod("body");
+        firstValue = headersClass.getMethod("firstValue", String.class);
+        orElse = optionalClass.getMethod("orElse", Object.class);
+
+        watchdog = new Timer("jwsclient-http-watchdog", true);
+        watchdog.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (WatchedInputStream in : watched) {
+                    // time the caller spends between reads, throttled or not, is not the server's
+                    long since = in.reading;
+                    if (since != 0 && now - since > HttpClientTransport.this.readTimeout)
+                        in.expire();
+                }
+            }
+        }, 1000, 1000);
+    }
+
+    @Override
+    public Response get(URL url, Map<String, String> requestHeaders) throws IOException {
+        try {
+            Object builder = newRequest.invoke(null, url.toURI());
+            for (Map.Entry<String, String> e : requestHeaders.entrySet())
+                builder = header.invoke(builder, e.getKey(), e.getValue());
+
+            // only covers the wait for the headers, the watchdog looks after bodies
+            builder = timeout.invoke(builder, ofMillis.invoke(null, (long)readTimeout));
+
+            Object response = send.invoke(client, build.invoke(builder), bodyHandler);
+
+            if (http2.equals(version.invoke(response)))
+                multiplexed.add(hostOf(url));
+
+            return new HttpClientResponse(
+                (Integer)statusCode.invoke(response),
+                headers.invoke(response),
+                new WatchedInputStream((InputStream)body.invoke(response)));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            if (e.getCause() instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while requesting " + url);
+            }
+            throw new IOException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public boolean isMultiplexed(URL url) {
+        return multiplexed.contains(hostOf(url));
+    }
+
+    private static String hostOf(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object constant(Class<?> type, String name) {
+        return Enum.valueOf((Class)type, name);
+    }
+
+    private class HttpClientResponse implements Response {
+
+        private int status;
+        private Object headers;
+        private InputStream body;
+
+        private HttpClientResponse(int status, Object headers, InputStream body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public String getMessage() {
+            // HTTP/2 has no reason phrases
+            return "";
+        }
+
+        @Override
+        public String getHeader(String name) {
+            try {
+                return (String)orElse.invoke(firstValue.invoke(headers, name), (Object)null);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void close() {
+            // an unread body cancels just this stream, the connection stays up
+            try {
+                body.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    private class WatchedInputStream extends FilterInputStream {
+
+        // when the read in progress started, 0 when not in one
+        private volatile long reading;
+        private volatile boolean expired;
+
+        private WatchedInputStream(InputStream in) {
+            super(in);
+            watched.add(this);
+        }
+
+        @Override
+        public int read() throws IOException {
+            reading = System.currentTimeMillis();
+            try {
+                return super.read();
+            } finally {
+                done();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            reading = System.currentTimeMillis();
+            try {
+                return super.read(b, off, len);
+            } finally {
+                done();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            watched.remove(this);
+            super.close();
+        }
+
+        private void done() throws SocketTimeoutException {
+            reading = 0;
+            if (expired)
+                throw new SocketTimeoutException("Read timed out");
+        }
+
+        private void expire() {
+            expired = true;
+            watched.remove(this);
+
+            // wakes up a blocked read
+            try {
+                in.close();
+            } catch (IOException e) { }
+        }
+    }
+}
@@ -15,170 +15,575 @@
  */
 package fi.iki.hifi.jwsclient;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
+ * A parsed JNLP descriptor.
+ *
+ * The descriptor is read once with a streaming parser into plain fields,
+ * the getters do no work. A compiled copy is kept next to the cached
+ * descriptor and used instead of parsing as long as the descriptor has
+ * the same content.
+ *
+ * Sections with os or arch attributes that do not match this machine are
+ * left out, the resources of the others are combined in document order.
  *
  * @author Toni Spets <toni.spets@iki.fi>
  */
 final public class JNLP {
 
-    private Document doc;
+    private static final int MAGIC = 0x4a4e4c50;
+    private static final int VERSION = 4;
+
+    private static XMLInputFactory factory;
+
+    private URL location;
+    private String codebase;
+    private String title;
+    private URL splash;
+    private String mainClass;
+    private List<String> arguments = new ArrayList<String>();
+    private Map<String, String> properties = new LinkedHashMap<String, String>();
+    private List<Resource> jars = new ArrayList<Resource>();
+    private URL mainJar;
+    private List<PackageMapping> packages = new ArrayList<PackageMapping>();
+    private List<Resource> nativeLibs = new ArrayList<Resource>();
+    private List<Resource> extensions = new ArrayList<Resource>();
+    private String initialHeapSize;
+    private String maxHeapSize;
+    private String vmArgs;
+
+    // only the first java runtime that applies is used
+    private boolean vmChosen;
 
-    private Node information;
-    private Node resources;
-    private Node applicationDesc;
+    /**
+     * @param location where the descriptor came from, hrefs are relative to it when there is no codebase
+     */
+    public JNLP(File file, URL location) throws IOException {
+        this.location = location;
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
 
-    public JNLP(File file) throws IOException {
         try {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            doc = db.parse(file);
-        } catch (Exception e) {
+            parse(in);
+        } catch (XMLStreamException e) {
             throw new IOException(e);
+        } catch (RuntimeException e) {
+            // missing attributes and the like, a broken descriptor all the same
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private JNLP() {
+    }
+
+    /**
+     * Parses the descriptor unless its compiled copy is for the same content.
+     *
+     * @param location where the descriptor came from
+     * @param sha1 content of the descriptor, null to always parse
+     */
+    public static JNLP load(File file, URL location, String sha1) throws IOException {
+        File compiled = new File(file.toString() + ".model");
+
+        // what applies depends on the platform too
+        String key = sha1 != null ? sha1 + " " + System.getProperty("os.name") + " " + System.getProperty("os.arch") : null;
+
+        if (key != null && compiled.isFile()) {
+            try {
+                JNLP jnlp = read(compiled, key);
+                if (jnlp != null)
+                    return jnlp;
+            } catch (IOException e) {
+                // parsed again and rewritten below
+            }
         }
 
-        NodeList nl = doc.getDocumentElement().getChildNodes();
-        Node node;
-        int i = 0;
-        while ((node = nl.item(i++)) != null) {
-            String tag = node.getNodeName().toLowerCase();
-            if (tag.equalsIgnoreCase("information")) {
-                information = node;
-            } else if (tag.equalsIgnoreCase("resources")) {
-                resources = node;
-            } else if (tag.equalsIgnoreCase("application-desc")) {
-                applicationDesc = node;
+        JNLP jnlp = new JNLP(file, location);
+
+        if (key != null) {
+            try {
+                jnlp.write(compiled, key);
+            } catch (IOException e) {
+                compiled.delete();
+                System.out.println("Failed to save " + compiled + ": " + e.getMessage());
             }
         }
+
+        return jnlp;
     }
 
     public String getCodebase() {
-        NamedNodeMap attributes = doc.getDocumentElement().getAttributes();
-        Node attr = attributes.getNamedItem("codebase");
-        return attr != null ? attr.getNodeValue() : null;
+        return codebase;
     }
 
     public URL getSplash() {
-        String codebase = getCodebase();
-        NodeList nl = information.getChildNodes();
-        Node node;
-        int i = 0;
-        while ((node = nl.item(i++)) != null) {
-            String tag = node.getNodeName().toLowerCase();
-            if (tag.equalsIgnoreCase("icon")) {
-                NamedNodeMap attributes = node.getAttributes();
-                Node kind = attributes.getNamedItem("kind");
-                Node href = attributes.getNamedItem("href");
-                if (kind != null && kind.getNodeValue().equalsIgnoreCase("splash") && href != null) {
-                    try {
-                        return new URL(codebase + (codebase.endsWith("/") ? "" : "/") + href.getNodeValue());
-                    } catch (MalformedURLException e) {
-                        return null;
-                    }
-                }
-            }
-        }
-
-        return null;
+        return splash;
     }
 
     public String getTitle() {
-        NodeList nl = information.getChildNodes();
-        Node node;
-        int i = 0;
-        while ((node = nl.item(i++)) != null) {
-            String tag = node.getNodeName().toLowerCase();
-            if (tag.equalsIgnoreCase("title")) {
-                return node.getFirstChild().getNodeValue();
-            }
-        }
-
-        return null;
+        return title;
     }
 
     public String getMainClass() {
-        NamedNodeMap attributes = applicationDesc.getAttributes();
-        Node attr = attributes.getNamedItem("main-class");
-        return attr != null ? attr.getNodeValue() : null;
+        return mainClass;
     }
 
     public String[] getMainArguments() {
-        NodeList nl = applicationDesc.getChildNodes();
-        Node node;
-        int i = 0;
-        List<String> argumentList = new ArrayList<String>();
-
-        while ((node = nl.item(i++)) != null) {
-            String tag = node.getNodeName().toLowerCase();
-            if (tag.equalsIgnoreCase("argument")) {
-                Node textChild = node.getFirstChild();
-                if (textChild != null)
-                    argumentList.add(textChild.getNodeValue());
-            }
-        }
+        return arguments.toArray(new String[arguments.size()]);
+    }
 
-        return argumentList.toArray(new String[argumentList.size()]);
+    public String getProperty(String name) {
+        return properties.get(name);
     }
 
     public List<URL> getJarList() {
-        String codebase = getCodebase();
-        NodeList nl = resources.getChildNodes();
-        Node node;
-        int i = 0;
         List<URL> jarList = new ArrayList<URL>();
+        for (Resource jar : jars)
+            jarList.add(jar.getHref());
+        return jarList;
+    }
 
-        while ((node = nl.item(i++)) != null) {
-            String tag = node.getNodeName().toLowerCase();
-            if (tag.equalsIgnoreCase("jar")) {
-                NamedNodeMap attributes = node.getAttributes();
-                Node attr = attributes.getNamedItem("href");
-                try {
-                    URL jar = new URL(codebase + (codebase.endsWith("/") ? "" : "/") + attr.getNodeValue());
-                    jarList.add(jar);
-                } catch (MalformedURLException e) {
-                    // ignore?
+    public List<Resource> getJars() {
+        return Collections.unmodifiableList(jars);
+    }
+
+    /**
+     * The package elements, which part holds which packages.
+     */
+    public List<PackageMapping> getPackages() {
+        return Collections.unmodifiableList(packages);
+    }
+
+    /**
+     * Jars with native libraries in their root.
+     */
+    public List<Resource> getNativeLibs() {
+        return Collections.unmodifiableList(nativeLibs);
+    }
+
+    /**
+     * Other descriptors whose resources this one needs.
+     */
+    public List<Resource> getExtensions() {
+        return Collections.unmodifiableList(extensions);
+    }
+
+    /**
+     * Initial heap the j2se element asks for, such as 64m, null if it does not.
+     */
+    public String getInitialHeapSize() {
+        return initialHeapSize;
+    }
+
+    public String getMaxHeapSize() {
+        return maxHeapSize;
+    }
+
+    /**
+     * The java-vm-args of the j2se element as written, null if it has none.
+     */
+    public String getJavaVmArgs() {
+        return vmArgs;
+    }
+
+    /**
+     * The jar marked main, the first one if none is.
+     */
+    public URL getMainJar() {
+        return mainJar;
+    }
+
+    private static synchronized XMLInputFactory factory() {
+        if (factory == null) {
+            factory = XMLInputFactory.newInstance();
+
+            // a descriptor has no business pulling in other files
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        }
+
+        return factory;
+    }
+
+    private void parse(InputStream in) throws XMLStreamException, IOException {
+        XMLStreamReader reader = factory().createXMLStreamReader(in);
+
+        // only direct children of the sections count
+        String section = null;
+        String element = null;
+        StringBuilder text = null;
+        int depth = 0;
+
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event == XMLStreamReader.START_ELEMENT) {
+                    depth++;
+                    String tag = reader.getLocalName();
+
+                    if (depth == 1) {
+                        codebase = attribute(reader, "codebase");
+                    } else if (depth == 2) {
+                        section = startSection(tag, reader) ? tag : null;
+                    } else if (depth == 3 && section != null) {
+                        element = tag;
+                        text = new StringBuilder();
+                        startElement(section, tag, reader);
+                    }
+                } else if (event == XMLStreamReader.END_ELEMENT) {
+                    if (depth == 3 && section != null && element != null) {
+                        endElement(section, element, text.toString());
+                        element = null;
+                        text = null;
+                    } else if (depth == 2) {
+                        section = null;
+                    }
+
+                    depth--;
+                } else if (text != null && (event == XMLStreamReader.CHARACTERS || event == XMLStreamReader.CDATA)) {
+                    text.append(reader.getText());
                 }
             }
+        } finally {
+            reader.close();
         }
 
-        return jarList;
+        if (mainJar == null && !jars.isEmpty())
+            mainJar = jars.get(0).getHref();
     }
 
-    public URL getMainJar() {
-        String codebase = getCodebase();
-        NodeList nl = resources.getChildNodes();
-        Node node;
-        int i = 0;
-        URL mainJar = null;
-
-        while ((node = nl.item(i++)) != null) {
-            String tag = node.getNodeName().toLowerCase();
-            if (tag.equalsIgnoreCase("jar")) {
-                NamedNodeMap attributes = node.getAttributes();
-                Node attr = attributes.getNamedItem("href");
-                Node main = attributes.getNamedItem("main");
-                if (mainJar == null || (main != null && !main.getNodeValue().equalsIgnoreCase("true"))) {
+    /**
+     * False if the section is for some other platform.
+     */
+    private boolean startSection(String tag, XMLStreamReader reader) {
+        if (!matches(attribute(reader, "os"), System.getProperty("os.name")) || !matches(attribute(reader, "arch"), System.getProperty("os.arch")))
+            return false;
+
+        if (tag.equalsIgnoreCase("information")) {
+            // the last one that applies wins, they usually differ by locale only
+            title = null;
+            splash = null;
+        } else if (tag.equalsIgnoreCase("application-desc")) {
+            mainClass = attribute(reader, "main-class");
+            arguments.clear();
+        }
+
+        return true;
+    }
+
+    /**
+     * Any of the space separated prefixes matches, no attribute matches everything.
+     */
+    private static boolean matches(String prefixes, String value) {
+        if (prefixes == null || prefixes.trim().length() == 0)
+            return true;
+
+        if (value == null)
+            return false;
+
+        // a space inside a prefix is escaped with a backslash
+        for (String prefix : prefixes.trim().split("(?<!\\\\)\\s+")) {
+            if (value.toLowerCase().startsWith(prefix.replace("\\ ", " ").toLowerCase()))
+                return true;
+        }
+
+        return false;
+    }
+
+    private void startElement(String section, String tag, XMLStreamReader reader) throws IOException {
+        if (section.equalsIgnoreCase("information")) {
+            if (tag.equalsIgnoreCase("icon")) {
+                String kind = attribute(reader, "kind");
+                String href = attribute(reader, "href");
+                if (splash == null && kind != null && kind.equalsIgnoreCase("splash") && href != null) {
+                    // the launch goes on without a splash just fine
                     try {
-                        mainJar = new URL(codebase + (codebase.endsWith("/") ? "" : "/") + attr.getNodeValue());
+                        splash = resolve(href);
                     } catch (MalformedURLException e) {
-                        //
+                        System.out.println("Ignoring splash: " + e.getMessage());
                     }
                 }
             }
+        } else if (section.equalsIgnoreCase("resources")) {
+            if (tag.equalsIgnoreCase("property")) {
+                String name = attribute(reader, "name");
+                String value = attribute(reader, "value");
+                if (name != null && value != null && !properties.containsKey(name))
+                    properties.put(name, value);
+            } else if (tag.equalsIgnoreCase("jar")) {
+                String href = attribute(reader, "href");
+                String main = attribute(reader, "main");
+                String download = attribute(reader, "download");
+                boolean isMain = main != null && main.equalsIgnoreCase("true");
+
+                // the main jar is always needed to start
+                boolean lazy = download != null && download.equalsIgnoreCase("lazy") && !isMain;
+
+                URL jar = resolve(href);
+                if (jar != null) {
+                    jars.add(new Resource(jar, attribute(reader, "version"), attribute(reader, "sha1"), lazy, attribute(reader, "part")));
+                    if (isMain && mainJar == null)
+                        mainJar = jar;
+                }
+            } else if (tag.equalsIgnoreCase("nativelib")) {
+                URL lib = resolve(attribute(reader, "href"));
+                if (lib != null)
+                    nativeLibs.add(new Resource(lib, attribute(reader, "version"), attribute(reader, "sha1")));
+            } else if (tag.equalsIgnoreCase("extension")) {
+                URL extension = resolve(attribute(reader, "href"));
+                if (extension != null)
+                    extensions.add(new Resource(extension, attribute(reader, "version")));
+            } else if ((tag.equalsIgnoreCase("j2se") || tag.equalsIgnoreCase("java")) && !vmChosen) {
+                initialHeapSize = attribute(reader, "initial-heap-size");
+                maxHeapSize = attribute(reader, "max-heap-size");
+                vmArgs = attribute(reader, "java-vm-args");
+                vmChosen = true;
+            } else if (tag.equalsIgnoreCase("package")) {
+                String name = attribute(reader, "name");
+                String part = attribute(reader, "part");
+                String recursive = attribute(reader, "recursive");
+                if (name != null && part != null)
+                    packages.add(new PackageMapping(name, part, recursive != null && recursive.equalsIgnoreCase("true")));
+            }
         }
+    }
 
-        return mainJar;
+    private void endElement(String section, String tag, String text) {
+        if (section.equalsIgnoreCase("information") && tag.equalsIgnoreCase("title")) {
+            if (title == null)
+                title = text;
+        } else if (section.equalsIgnoreCase("application-desc") && tag.equalsIgnoreCase("argument")) {
+            arguments.add(text);
+        }
+    }
+
+    /**
+     * Resolves against the codebase, or against the descriptor itself if it has none.
+     *
+     * @throws MalformedURLException if the href makes no URL, nothing is silently left out of a launch
+     */
+    private URL resolve(String href) throws MalformedURLException {
+        if (href == null)
+            return null;
+
+        try {
+            URL base = location;
+            if (codebase != null)
+                base = new URL(location, codebase + (codebase.endsWith("/") ? "" : "/"));
+
+            // extensions in particular tend to live elsewhere and have absolute hrefs
+            return new URL(base, href);
+        } catch (MalformedURLException e) {
+            throw new MalformedURLException("Invalid href " + href + " in " + (location != null ? location : "descriptor") + ": " + e.getMessage());
+        }
+    }
+
+    private static String attribute(XMLStreamReader reader, String name) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (reader.getAttributeLocalName(i).equals(name))
+                return reader.getAttributeValue(i);
+        }
+
+        return null;
+    }
+
+    private static JNLP read(File file, String key) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(key))
+                return null;
+
+            JNLP jnlp = new JNLP();
+            jnlp.codebase = readString(in);
+            jnlp.title = readString(in);
+            jnlp.splash = readURL(in);
+            jnlp.mainClass = readString(in);
+            jnlp.mainJar = readURL(in);
+            jnlp.initialHeapSize = readString(in);
+            jnlp.maxHeapSize = readString(in);
+            jnlp.vmArgs = readString(in);
+
+            for (int i = in.readInt(); i > 0; i--)
+                jnlp.arguments.add(in.readUTF());
+
+            for (int i = in.readInt(); i > 0; i--)
+                jnlp.properties.put(in.readUTF(), in.readUTF());
+
+            for (int i = in.readInt(); i > 0; i--)
+                jnlp.jars.add(new Resource(new URL(in.readUTF()), readString(in), readString(in), in.readBoolean(), readString(in)));
+
+            for (int i = in.readInt(); i > 0; i--)
+                jnlp.packages.add(new PackageMapping(in.readUTF(), in.readUTF(), in.readBoolean()));
+
+            for (int i = in.readInt(); i > 0; i--)
+                jnlp.nativeLibs.add(readResource(in));
+
+            for (int i = in.readInt(); i > 0; i--)
+                jnlp.extensions.add(readResource(in));
+
+            return jnlp;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(File file, String key) throws IOException {
+        File tmp = new File(file.toString() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            writeString(out, codebase);
+            writeString(out, title);
+            writeString(out, splash != null ? splash.toString() : null);
+            writeString(out, mainClass);
+            writeString(out, mainJar != null ? mainJar.toString() : null);
+            writeString(out, initialHeapSize);
+            writeString(out, maxHeapSize);
+            writeString(out, vmArgs);
+
+            out.writeInt(arguments.size());
+            for (String argument : arguments)
+                out.writeUTF(argument);
+
+            out.writeInt(properties.size());
+            for (Map.Entry<String, String> e : properties.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+
+            out.writeInt(jars.size());
+            for (Resource jar : jars) {
+                out.writeUTF(jar.getHref().toString());
+                writeString(out, jar.getVersion());
+                writeString(out, jar.getSha1());
+                out.writeBoolean(jar.isLazy());
+                writeString(out, jar.getPart());
+            }
+
+            out.writeInt(packages.size());
+            for (PackageMapping mapping : packages) {
+                out.writeUTF(mapping.getName());
+                out.writeUTF(mapping.getPart());
+                out.writeBoolean(mapping.isRecursive());
+            }
+
+            out.writeInt(nativeLibs.size());
+            for (Resource lib : nativeLibs)
+                writeResource(out, lib);
+
+            out.writeInt(extensions.size());
+            for (Resource extension : extensions)
+                writeResource(out, extension);
+        } finally {
+            out.close();
+        }
+
+        // the old copy is in the way on Windows
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to rename " + tmp);
+        }
+    }
+
+    private static Resource readResource(DataInputStream in) throws IOException {
+        return new Resource(new URL(in.readUTF()), readString(in), readString(in));
+    }
+
+    private static void writeResource(DataOutputStream out, Resource resource) throws IOException {
+        out.writeUTF(resource.getHref().toString());
+        writeString(out, resource.getVersion());
+        writeString(out, resource.getSha1());
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static URL readURL(DataInputStream in) throws IOException {
+        String url = readString(in);
+        return url != null ? new URL(url) : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    /**
+     * A package element, name is either a class or a package ending in .*
+     */
+    final public static class PackageMapping {
+
+        private String name;
+        private String part;
+        private boolean recursive;
+
+        public PackageMapping(String name, String part, boolean recursive) {
+            this.name = name.trim();
+            this.part = part.trim();
+            this.recursive = recursive;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getPart() {
+            return part;
+        }
+
+        public boolean isRecursive() {
+            return recursive;
+        }
+
+        /**
+         * True if the named class is in this part.
+         */
+        public boolean matches(String className) {
+            if (!name.endsWith(".*"))
+                return name.equals(className);
+
+            int dot = className.lastIndexOf('.');
+            return containsPackage(dot < 0 ? "" : className.substring(0, dot));
+        }
+
+        /**
+         * True if the classes and resources of the package are in this part.
+         */
+        public boolean containsPackage(String packageName) {
+            if (!name.endsWith(".*"))
+                return false;
+
+            // only the package itself unless recursive
+            String base = name.substring(0, name.length() - 2);
+            return packageName.equals(base) || (recursive && packageName.startsWith(base + "."));
+        }
     }
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Applies a JNLP JarDiff (application/x-java-archive-diff) to a cached jar.
+ *
+ * A JarDiff is a jar with the changed entries and a META-INF/INDEX.JD listing
+ * "remove <name>" and "move <old> <new>" commands, everything else is copied
+ * over from the old jar.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class JarDiffPatcher {
+
+    public static final String CONTENT_TYPE = "application/x-java-archive-diff";
+
+    private static final String INDEX_NAME = "META-INF/INDEX.JD";
+
+    private JarDiffPatcher() {
+    }
+
+    /**
+     * Writes the patched jar to newFile and returns its SHA-1.
+     *
+     * @param sha1 what the descriptor publishes for the new version, null if nothing
+     * @throws IOException if the patch fails or does not give the published bytes
+     */
+    public static String apply(File oldFile, File diffFile, File newFile, String sha1) throws IOException {
+        JarFile oldJar = new JarFile(oldFile);
+        JarFile diffJar = new JarFile(diffFile);
+        MessageDigest md = BlobStore.digest();
+
+        try {
+            Set<String> removed = new HashSet<String>();
+            Map<String, String> moved = new HashMap<String, String>();
+            readIndex(diffJar, removed, moved);
+
+            // name in the new jar -> where its bytes come from
+            Map<String, Source> entries = new LinkedHashMap<String, Source>();
+
+            Enumeration<JarEntry> e = diffJar.entries();
+            while (e.hasMoreElements()) {
+                JarEntry entry = e.nextElement();
+                if (!entry.getName().equals(INDEX_NAME))
+                    entries.put(entry.getName(), new Source(diffJar, entry));
+            }
+
+            Set<String> consumed = new HashSet<String>(removed);
+            for (Map.Entry<String, String> move : moved.entrySet()) {
+                JarEntry entry = oldJar.getJarEntry(move.getValue());
+                if (entry == null)
+                    throw new IOException("JarDiff moves missing entry " + move.getValue());
+
+                entries.put(move.getKey(), new Source(oldJar, entry));
+                consumed.add(move.getValue());
+            }
+
+            e = oldJar.entries();
+            while (e.hasMoreElements()) {
+                JarEntry entry = e.nextElement();
+                if (!consumed.contains(entry.getName()) && !entries.containsKey(entry.getName()))
+                    entries.put(entry.getName(), new Source(oldJar, entry));
+            }
+
+            write(entries, newFile, md);
+        } finally {
+            diffJar.close();
+            oldJar.close();
+        }
+
+        String result = BlobStore.hex(md.digest());
+
+        // a patched jar is only known good if it hashes to what was published
+        if (sha1 != null) {
+            if (!sha1.equals(result))
+                throw new IOException("Patched jar does not match " + sha1 + ", got " + result);
+        } else {
+            verify(newFile);
+        }
+
+        return result;
+    }
+
+    private static void readIndex(JarFile diffJar, Set<String> removed, Map<String, String> moved) throws IOException {
+        JarEntry index = diffJar.getJarEntry(INDEX_NAME);
+        if (index == null)
+            throw new IOException("JarDiff is missing " + INDEX_NAME);
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(diffJar.getInputStream(index), "UTF-8"));
+
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.trim().startsWith("version 1.0"))
+                throw new IOException("Unsupported JarDiff version: " + line);
+
+            while ((line = reader.readLine()) != null) {
+                List<String> args = split(line);
+                if (args.isEmpty())
+                    continue;
+
+                if (args.get(0).equals("remove") && args.size() == 2) {
+                    removed.add(args.get(1));
+                } else if (args.get(0).equals("move") && args.size() == 3) {
+                    moved.put(args.get(2), args.get(1));
+                } else {
+                    throw new IOException("Invalid JarDiff command: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static List<String> split(String line) {
+        // names escape spaces with a backslash
+        List<String> args = new ArrayList<String>();
+        StringBuilder current = new StringBuilder();
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                current.append(line.charAt(++i));
+            } else if (c == ' ') {
+                if (current.length() > 0)
+                    args.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+
+        if (current.length() > 0)
+            args.add(current.toString());
+
+        return args;
+    }
+
+    private static void write(Map<String, Source> entries, File newFile, MessageDigest md) throws IOException {
+        JarOutputStream out = new JarOutputStream(new DigestOutputStream(new FileOutputStream(newFile), md));
+        byte[] buf = new byte[65536];
+
+        try {
+            // the manifest has to come first for stream readers
+            List<String> names = new ArrayList<String>(entries.keySet());
+            if (names.remove(JarFile.MANIFEST_NAME))
+                names.add(0, JarFile.MANIFEST_NAME);
+            if (names.remove("META-INF/"))
+                names.add(0, "META-INF/");
+
+            for (String name : names) {
+                Source source = entries.get(name);
+                ZipEntry entry = new ZipEntry(name);
+                entry.setTime(source.entry.getTime());
+                entry.setComment(source.entry.getComment());
+                entry.setExtra(source.entry.getExtra());
+                out.putNextEntry(entry);
+
+                InputStream in = source.jar.getInputStream(source.entry);
+                try {
+                    int i;
+                    while ((i = in.read(buf)) >= 0)
+                        out.write(buf, 0, i);
+                } finally {
+                    in.close();
+                }
+
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void verify(File file) throws IOException {
+        // reading every entry through checks the CRC of each of them
+        JarFile jar = new JarFile(file);
+        byte[] buf = new byte[65536];
+
+        try {
+            Enumeration<JarEntry> e = jar.entries();
+            while (e.hasMoreElements()) {
+                InputStream in = jar.getInputStream(e.nextElement());
+                try {
+                    while (in.read(buf) >= 0) { }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    private static class Source {
+
+        private JarFile jar;
+        private JarEntry entry;
+
+        private Source(JarFile jar, JarEntry entry) {
+            this.jar = jar;
+            this.entry = entry;
+        }
+    }
+}
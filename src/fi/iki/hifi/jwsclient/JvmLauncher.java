@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import com.sun.management.VMOption;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the launcher again in a virtual machine of its own when the j2se
+ * element of the descriptor asks for a heap or flags this one was not
+ * started with.
+ *
+ * The child does the whole launch over again with the cache the parent
+ * just filled, so it has lazy jars, native libraries and the background
+ * update like any launch. System properties from java-vm-args do not need
+ * a virtual machine of their own, they are set in this one instead. Options
+ * that would do more than size and tune the virtual machine, such as a
+ * debugger agent or a boot class path, are left out.
+ *
+ * On Java 13 and later the child also gets a class data sharing archive of
+ * the generation it runs: the first child of a generation records one when
+ * it exits, later ones map the classes in from it instead of loading and
+ * verifying them again. A new generation starts without an archive.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class JvmLauncher {
+
+    private static final Pattern SIZE = Pattern.compile("[0-9]+[kKmMgG]?");
+
+    // heap sizes are rounded up to the alignment of the collector
+    private static final long SIZE_SLACK = 8 * 1024 * 1024;
+
+    private List<String> options = new ArrayList<String>();
+    private File archive;
+
+    public JvmLauncher(JNLP jnlp) {
+        if (jnlp.getInitialHeapSize() != null && SIZE.matcher(jnlp.getInitialHeapSize()).matches())
+            options.add("-Xms" + jnlp.getInitialHeapSize());
+
+        if (jnlp.getMaxHeapSize() != null && SIZE.matcher(jnlp.getMaxHeapSize()).matches())
+            options.add("-Xmx" + jnlp.getMaxHeapSize());
+
+        if (jnlp.getJavaVmArgs() == null)
+            return;
+
+        // the descriptor comes from the network, only what shapes the virtual machine gets through
+        for (String arg : split(jnlp.getJavaVmArgs())) {
+            if (isSecure(arg))
+                options.add(arg);
+            else if (arg.length() > 0)
+                System.out.println("Ignoring java-vm-args option " + arg);
+        }
+    }
+
+    /**
+     * The class data sharing archive for the child, it does not need to exist yet.
+     */
+    public void setArchive(File archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * True if this virtual machine is not what the descriptor asks for, or
+     * if class data sharing was asked to be used no matter what.
+     */
+    public boolean isNeeded() {
+        if (archive != null && Boolean.getBoolean("jwsclient.cds")) {
+            System.out.println("Using a child virtual machine for class data sharing");
+            return true;
+        }
+
+        List<String> running = ManagementFactory.getRuntimeMXBean().getInputArguments();
+
+        for (String option : options) {
+            if (option.startsWith("-D") || running.contains(option))
+                continue;
+
+            if (!isSet(option)) {
+                System.out.println("This virtual machine was not started with " + option);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sets the system properties of java-vm-args, for running without a child.
+     */
+    public void setProperties() {
+        for (String option : options) {
+            if (!option.startsWith("-D"))
+                continue;
+
+            int eq = option.indexOf('=');
+            if (eq < 0)
+                System.setProperty(option.substring(2), "");
+            else
+                System.setProperty(option.substring(2, eq), option.substring(eq + 1));
+        }
+    }
+
+    /**
+     * Runs the launcher in a child with the same arguments and waits for it.
+     *
+     * @return exit code of the child
+     */
+    public int run(String[] args) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(javaCommand());
+        command.addAll(options);
+
+        // an archive older than the launcher would be turned down by the child anyway
+        File recording = null;
+        if (archive != null) {
+            if (archive.isFile() && archive.lastModified() < launcher().lastModified())
+                archive.delete();
+
+            if (archive.isFile()) {
+                command.add("-XX:SharedArchiveFile=" + archive);
+            } else {
+                // recorded aside, two children at once must not write the same file
+                recording = new File(archive + ".tmp-" + Long.toHexString(System.nanoTime()));
+                command.add("-XX:ArchiveClassesAtExit=" + recording);
+            }
+
+            // classes it can not archive are no business of the user
+            command.add("-Xlog:cds=off,cds+dynamic=off");
+        }
+
+        // the child must not fork again and takes the tunables of this one along
+        for (Map.Entry<Object, Object> e : System.getProperties().entrySet()) {
+            String name = e.getKey().toString();
+            if (name.startsWith("jwsclient.") && !name.equals("jwsclient.fork"))
+                command.add("-D" + name + "=" + e.getValue());
+        }
+        command.add("-Djwsclient.fork=false");
+
+        command.add("-cp");
+        command.add(launcher().toString());
+        command.add(Main.class.getName());
+        for (String arg : args)
+            command.add(arg);
+
+        System.out.println("Starting child virtual machine: " + command);
+        Process child = new ProcessBuilder(command).inheritIO().start();
+
+        int status;
+        while (true) {
+            try {
+                status = child.waitFor();
+                break;
+            } catch (InterruptedException e) {
+                // nothing to do before the child is gone
+            }
+        }
+
+        if (recording != null) {
+            if (recording.length() > 0 && recording.renameTo(archive))
+                System.out.println("Recorded class data sharing archive " + archive);
+            else
+                recording.delete();
+        }
+
+        return status;
+    }
+
+    /**
+     * What tells archives of this virtual machine apart, null if it can not use one.
+     */
+    public static String getArchiveKey() {
+        if ("false".equals(System.getProperty("jwsclient.cds")))
+            return null;
+
+        // dynamic archives came with Java 13, versions before 9 start with 1.
+        try {
+            if (Integer.parseInt(System.getProperty("java.specification.version")) < 13)
+                return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        // and only know classes of jars on the class path
+        if (!launcher().isFile())
+            return null;
+
+        return System.getProperty("java.vm.version").replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Heap and stack sizes, -XX: switches and numbers, properties, assertions
+     * and -verbose. No agents, debuggers, class paths or -XX: options taking
+     * a file or a command.
+     */
+    private static boolean isSecure(String arg) {
+        if (arg.matches("-X(ms|mx|ss|mn)[0-9]+[kKmMgG]?"))
+            return true;
+
+        if (arg.matches("-XX:[+-][A-Za-z0-9_]+") || arg.matches("-XX:[A-Za-z0-9_]+=[0-9]+[kKmMgG%]?"))
+            return true;
+
+        return arg.startsWith("-D") || arg.matches("-verbose(:(gc|class|jni))?")
+            || arg.matches("-(e|d|es|ds)a(:.*)?") || arg.matches("-(enable|disable)(system)?assertions(:.*)?");
+    }
+
+    private static boolean isSet(String option) {
+        if (option.startsWith("-Xmx") && SIZE.matcher(option.substring(4)).matches())
+            return isSize("MaxHeapSize", option.substring(4));
+
+        if (option.startsWith("-Xms") && SIZE.matcher(option.substring(4)).matches())
+            return isSize("InitialHeapSize", option.substring(4));
+
+        if (option.startsWith("-XX:+") || option.startsWith("-XX:-"))
+            return String.valueOf(option.charAt(4) == '+').equals(flag(option.substring(5)));
+
+        if (option.startsWith("-XX:") && option.indexOf('=') > 0) {
+            int eq = option.indexOf('=');
+            return option.substring(eq + 1).equals(flag(option.substring(4, eq)));
+        }
+
+        return false;
+    }
+
+    @SuppressWarnings("fallthrough")
+    private static boolean isSize(String flag, String size) {
+        String value = flag(flag);
+        if (value == null)
+            return false;
+
+        long wanted = Long.parseLong(size.replaceAll("[kKmMgG]$", ""));
+        // each unit falls through to the ones below it
+        switch (Character.toLowerCase(size.charAt(size.length() - 1))) {
+            case 'g': wanted *= 1024;
+            case 'm': wanted *= 1024;
+            case 'k': wanted *= 1024;
+        }
+
+        long actual = Long.parseLong(value);
+        return actual >= wanted && actual - wanted < SIZE_SLACK;
+    }
+
+    /**
+     * The value of a flag of this virtual machine, null if it can not be told.
+     */
+    private static String flag(String name) {
+        try {
+            VMOption option = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class).getVMOption(name);
+            return option.getValue();
+        } catch (RuntimeException e) {
+            // not a HotSpot or no such flag
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    private static String javaCommand() {
+        File bin = new File(System.getProperty("java.home"), "bin");
+
+        // no console window for the child on Windows
+        File javaw = new File(bin, "javaw.exe");
+        if (javaw.isFile())
+            return javaw.toString();
+
+        File java = new File(bin, "java.exe");
+        return java.isFile() ? java.toString() : new File(bin, "java").toString();
+    }
+
+    private static File launcher() {
+        // a Launch4j wrapped executable is a jar as well
+        try {
+            return new File(URLDecoder.decode(Main.class.getProtectionDomain().getCodeSource().getLocation().getPath(), "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Splits java-vm-args on whitespace, double or single quotes keep a value
+     * such as -Dfoo="a b" in one piece and are dropped like a shell would.
+     */
+    private static List<String> split(String line) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder current = new StringBuilder();
+        boolean started = false;
+        char quote = 0;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+                else
+                    current.append(c);
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                started = true;
+            } else if (Character.isWhitespace(c)) {
+                if (started)
+                    args.add(current.toString());
+                current.setLength(0);
+                started = false;
+            } else {
+                current.append(c);
+                started = true;
+            }
+        }
+
+        if (started)
+            args.add(current.toString());
+
+        return args;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * The classes of a generation inflated once into a single file that is
+ * mapped into memory, class bytes are handed to defineClass straight from
+ * the mapping.
+ *
+ * Each jar has its own contiguous segment, a jar whose content did not
+ * change is copied over from the bundle of the previous generation as is.
+ * Signed jars are left out, their signatures would not be checked, and so
+ * are multi-release jars, which entries apply depends on the runtime.
+ *
+ * Layout: the segments, then the entry table, then the offset of the table
+ * and a magic number.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class LaunchBundle {
+
+    private static final int MAGIC = 0x4a575342;
+    private static final int TRAILER = 12;
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+    private MappedByteBuffer buffer;
+    private Map<String, Segment> segments;
+    private Map<String, Manifest> manifests = new HashMap<String, Manifest>();
+
+    private LaunchBundle(MappedByteBuffer buffer, Map<String, Segment> segments) {
+        this.buffer = buffer;
+        this.segments = segments;
+    }
+
+    /**
+     * True if the classes of the jar are in the bundle, the jar does not need to be opened then.
+     */
+    public boolean contains(File jar) {
+        return segments.containsKey(jar.getName());
+    }
+
+    /**
+     * The bytes of an entry of a bundled jar, null if the jar does not have it.
+     */
+    public ByteBuffer get(File jar, String name) {
+        Segment segment = segments.get(jar.getName());
+        long[] entry = segment != null ? segment.entries.get(name) : null;
+        if (entry == null)
+            return null;
+
+        // every caller gets its own view, the mapping itself is never moved
+        ByteBuffer view = buffer.duplicate();
+        view.position((int)(segment.offset + entry[0]));
+        view.limit((int)(segment.offset + entry[0] + entry[1]));
+        return view.slice();
+    }
+
+    public Manifest getManifest(File jar) throws IOException {
+        synchronized (manifests) {
+            if (manifests.containsKey(jar.getName()))
+                return manifests.get(jar.getName());
+
+            ByteBuffer bytes = get(jar, MANIFEST);
+            Manifest manifest = null;
+            if (bytes != null) {
+                byte[] buf = new byte[bytes.remaining()];
+                bytes.get(buf);
+                manifest = new Manifest(new ByteArrayInputStream(buf));
+            }
+
+            manifests.put(jar.getName(), manifest);
+            return manifest;
+        }
+    }
+
+    /**
+     * Maps a bundle written for the given jars, null if there is none.
+     */
+    public static LaunchBundle open(File file, List<File> jars) {
+        if (!file.isFile())
+            return null;
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+            try {
+                // the mapping stays valid after the file is closed
+                FileChannel channel = raf.getChannel();
+                if (channel.size() > Integer.MAX_VALUE)
+                    return null;
+
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                Map<String, Segment> segments = readTable(buffer);
+                if (segments == null)
+                    return null;
+
+                for (String name : segments.keySet()) {
+                    boolean known = false;
+                    for (File jar : jars)
+                        known |= jar.getName().equals(name);
+                    if (!known)
+                        return null;
+                }
+
+                return new LaunchBundle(buffer, segments);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Not using " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the bundle of the jars, reusing segments of the previous bundle
+     * for jars with the same SHA-1.
+     *
+     * @param sha1s content of each jar, null entries are never reused
+     * @param previous bundle of the generation before, may be null or missing
+     */
+    public static void build(File file, List<File> jars, List<String> sha1s, File previous) throws IOException {
+        Map<String, Segment> old = null;
+        RandomAccessFile oldFile = null;
+
+        if (previous != null && previous.isFile()) {
+            try {
+                oldFile = new RandomAccessFile(previous, "r");
+                old = readTable(oldFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, oldFile.length()));
+            } catch (IOException e) {
+                old = null;
+            }
+        }
+
+        // written aside and renamed, nobody ever maps half a bundle
+        File tmp = new File(file.toString() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        List<Segment> written = new ArrayList<Segment>();
+        int reused = 0;
+
+        try {
+            FileChannel out = fos.getChannel();
+
+            for (int i = 0; i < jars.size(); i++) {
+                File jar = jars.get(i);
+                String sha1 = sha1s.get(i);
+                Segment segment = null;
+
+                // opened as usual by the class loader, which picks the entries of this runtime
+                if (PackageIndex.isMultiRelease(jar))
+                    continue;
+
+                if (old != null && sha1 != null) {
+                    for (Segment candidate : old.values()) {
+                        if (sha1.equals(candidate.sha1)) {
+                            segment = new Segment(jar.getName(), sha1, out.position(), candidate.length, candidate.entries);
+                            copy(oldFile.getChannel(), candidate.offset, candidate.length, out);
+                            reused++;
+                            break;
+                        }
+                    }
+                }
+
+                if (segment == null)
+                    segment = inflate(jar, sha1, out);
+
+                if (segment != null)
+                    written.add(segment);
+            }
+
+            if (out.position() > Integer.MAX_VALUE)
+                throw new IOException("Bundle would be too large to map");
+
+            long tableOffset = out.position();
+            DataOutputStream table = new DataOutputStream(new BufferedOutputStream(fos));
+
+            table.writeInt(written.size());
+            for (Segment segment : written) {
+                table.writeUTF(segment.name);
+                table.writeUTF(segment.sha1 != null ? segment.sha1 : "");
+                table.writeLong(segment.offset);
+                table.writeLong(segment.length);
+                table.writeInt(segment.entries.size());
+
+                for (Map.Entry<String, long[]> e : segment.entries.entrySet()) {
+                    table.writeUTF(e.getKey());
+                    table.writeLong(e.getValue()[0]);
+                    table.writeLong(e.getValue()[1]);
+                }
+            }
+
+            table.writeLong(tableOffset);
+            table.writeInt(MAGIC);
+            table.flush();
+        } finally {
+            fos.close();
+
+            if (oldFile != null)
+                oldFile.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to save " + file);
+        }
+
+        System.out.println("Bundled " + written.size() + " jars into " + file + ", " + reused + " unchanged.");
+    }
+
+    /**
+     * Appends the stored entries of a jar, null if the jar is signed.
+     */
+    private static Segment inflate(File file, String sha1, FileChannel out) throws IOException {
+        JarFile jar = new JarFile(file, false);
+
+        try {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName().toUpperCase();
+                if (name.startsWith("META-INF/") && (name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC")))
+                    return null;
+            }
+
+            long start = out.position();
+            Map<String, long[]> table = new HashMap<String, long[]>();
+            byte[] buf = new byte[65536];
+
+            entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (entry.isDirectory() || table.containsKey(entry.getName()))
+                    continue;
+
+                long offset = out.position() - start;
+                InputStream in = jar.getInputStream(entry);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(entry.getSize() > 0 ? (int)entry.getSize() : 8192);
+
+                try {
+                    int len;
+                    while ((len = in.read(buf)) != -1)
+                        bytes.write(buf, 0, len);
+                } finally {
+                    in.close();
+                }
+
+                ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+                while (data.hasRemaining())
+                    out.write(data);
+
+                table.put(entry.getName(), new long[] { offset, bytes.size() });
+            }
+
+            return new Segment(file.getName(), sha1, start, out.position() - start, table);
+        } finally {
+            jar.close();
+        }
+    }
+
+    private static void copy(FileChannel in, long offset, long length, FileChannel out) throws IOException {
+        long done = 0;
+        while (done < length) {
+            long n = in.transferTo(offset + done, length - done, out);
+            if (n <= 0)
+                throw new IOException("Previous bundle ended early");
+            done += n;
+        }
+    }
+
+    private static Map<String, Segment> readTable(ByteBuffer buffer) throws IOException {
+        int size = buffer.capacity();
+        if (size < TRAILER || buffer.getInt(size - 4) != MAGIC)
+            return null;
+
+        long tableOffset = buffer.getLong(size - TRAILER);
+        if (tableOffset < 0 || tableOffset > size - TRAILER)
+            return null;
+
+        byte[] raw = new byte[(int)(size - TRAILER - tableOffset)];
+        ByteBuffer view = buffer.duplicate();
+        view.position((int)tableOffset);
+        view.get(raw);
+
+        DataInputStream table = new DataInputStream(new ByteArrayInputStream(raw));
+        Map<String, Segment> segments = new HashMap<String, Segment>();
+
+        int count = table.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = table.readUTF();
+            String sha1 = table.readUTF();
+            long offset = table.readLong();
+            long length = table.readLong();
+            int entryCount = table.readInt();
+
+            Map<String, long[]> entries = new HashMap<String, long[]>(entryCount * 2);
+            for (int j = 0; j < entryCount; j++)
+                entries.put(table.readUTF(), new long[] { table.readLong(), table.readLong() });
+
+            segments.put(name, new Segment(name, sha1.length() > 0 ? sha1 : null, offset, length, entries));
+        }
+
+        return segments;
+    }
+
+    private static class Segment {
+
+        private String name;
+        private String sha1;
+        private long offset;
+        private long length;
+
+        // entry name to offset within the segment and length
+        private Map<String, long[]> entries;
+
+        private Segment(String name, String sha1, long offset, long length, Map<String, long[]> entries) {
+            this.name = name;
+            this.sha1 = sha1;
+            this.offset = offset;
+            this.length = length;
+            this.entries = entries;
+        }
+    }
+}
@@ -0,0 +1,572 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipFile;
+
+/**
+ * Class loader of the application, starts with the eager jars and fetches
+ * lazy ones the first time something in them is looked up.
+ *
+ * Which jar has what comes from the package elements of the descriptor and
+ * from the jar index (META-INF/INDEX.LIST) of the eager jars. A class nobody
+ * claims makes the lazy jars nobody claims come in as a last resort, a
+ * resource nobody claims does not.
+ *
+ * With a package index only the jars that have the package of a class are
+ * looked in, and they are opened the first time they are needed. Jars in a
+ * launch bundle are not opened at all, their classes come from the bundle.
+ *
+ * Native libraries come from the directories their jars were extracted to.
+ *
+ * Lookups may run in parallel, a launch profile is preloaded by several
+ * threads at once while the application starts.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class LaunchClassLoader extends URLClassLoader {
+
+    private static final String INDEX = "META-INF/INDEX.LIST";
+
+    // JarFile(File, boolean, int, Runtime.Version) and Runtime.version(), null before Java 9
+    private static Constructor<JarFile> versioned;
+    private static Object runtimeVersion;
+
+    static {
+        registerAsParallelCapable();
+
+        try {
+            Class<?> versionClass = Class.forName("java.lang.Runtime$Version");
+            runtimeVersion = Runtime.class.getMethod("version").invoke(null);
+            versioned = JarFile.class.getConstructor(File.class, boolean.class, int.class, versionClass);
+        } catch (Exception e) {
+            // no multi-release jars before Java 9
+            versioned = null;
+        }
+    }
+
+    private volatile PackageIndex packages;
+    private LaunchBundle bundle;
+    private Map<File, JarFile> jars = new HashMap<File, JarFile>();
+    private Cache cache;
+    private List<Resource> lazy;
+    private Map<Resource, Future<Boolean>> fetching = new HashMap<Resource, Future<Boolean>>();
+    private List<JNLP.PackageMapping> mappings;
+    private List<File> natives;
+    private volatile LaunchProfile profile;
+    private volatile Updater updater;
+
+    // package path or top level file name to the jars having it
+    private Map<String, List<Resource>> index = new HashMap<String, List<Resource>>();
+
+    /**
+     * @param packages where the classes in urls are, null to look in every jar
+     * @param bundle classes of the jars in urls ready to define, may be null, only used with packages
+     * @param natives directories of extracted native libraries
+     */
+    public LaunchClassLoader(URL[] urls, PackageIndex packages, LaunchBundle bundle, Cache cache, List<Resource> lazy, List<JNLP.PackageMapping> mappings, List<File> natives) {
+        super(urls);
+        this.packages = packages;
+        this.bundle = bundle;
+        this.cache = cache;
+        this.lazy = new ArrayList<Resource>(lazy);
+        this.mappings = mappings;
+        this.natives = natives;
+
+        if (!lazy.isEmpty())
+            readIndex();
+    }
+
+    /**
+     * Records what is looked up into the profile from now on.
+     */
+    public void setProfile(LaunchProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * The background update to hold back while the application waits on a lazy jar.
+     */
+    public void setUpdater(Updater updater) {
+        this.updater = updater;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        Class<?> c = find(name);
+
+        if (c == null && fetch(forClass(name)))
+            c = find(name);
+
+        if (c == null)
+            throw new ClassNotFoundException(name);
+
+        LaunchProfile recording = profile;
+        if (recording != null)
+            recording.classLoaded(name);
+
+        return c;
+    }
+
+    @Override
+    public URL findResource(String name) {
+        URL url = resource(name);
+
+        if (url == null && fetch(forResource(name)))
+            url = resource(name);
+
+        LaunchProfile recording = profile;
+        if (recording != null && url != null)
+            recording.resourceFound(name);
+
+        return url;
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        // every copy was asked for, so everything that may have one comes first
+        fetch(forResource(name));
+
+        PackageIndex index = packages;
+        if (index == null)
+            return super.findResources(name);
+
+        List<URL> urls = new ArrayList<URL>();
+        List<File> having = index.get(name);
+        if (having != null) {
+            for (File file : having) {
+                if (has(file, name))
+                    urls.add(url(file, name));
+            }
+        }
+
+        return Collections.enumeration(urls);
+    }
+
+    @Override
+    protected String findLibrary(String name) {
+        String file = System.mapLibraryName(name);
+
+        for (File dir : natives) {
+            File lib = new File(dir, file);
+            if (lib.isFile())
+                return lib.getAbsolutePath();
+        }
+
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+
+        synchronized (jars) {
+            for (JarFile jar : jars.values())
+                jar.close();
+            jars.clear();
+        }
+    }
+
+    private Class<?> find(String name) throws ClassNotFoundException {
+        PackageIndex index = packages;
+
+        if (index == null) {
+            try {
+                return super.findClass(name);
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        }
+
+        String path = name.replace('.', '/') + ".class";
+        List<File> having = index.get(path);
+        if (having == null)
+            return null;
+
+        for (File file : having) {
+            try {
+                if (bundle != null && bundle.contains(file)) {
+                    ByteBuffer bytes = bundle.get(file, path);
+                    if (bytes != null)
+                        return define(name, file, bundle.getManifest(file), bytes, null);
+                    continue;
+                }
+
+                JarFile jar = open(file);
+                JarEntry entry = jar.getJarEntry(path);
+                if (entry != null) {
+                    byte[] bytes = read(jar, entry);
+
+                    // the signers are known once the entry has been read through
+                    return define(name, file, jar.getManifest(), ByteBuffer.wrap(bytes), entry.getCodeSigners());
+                }
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+
+        return null;
+    }
+
+    private URL resource(String name) {
+        PackageIndex index = packages;
+        if (index == null)
+            return super.findResource(name);
+
+        List<File> having = index.get(name);
+        if (having == null)
+            return null;
+
+        for (File file : having) {
+            try {
+                if (has(file, name))
+                    return url(file, name);
+            } catch (IOException e) {
+                // as if it was not there
+            }
+        }
+
+        return null;
+    }
+
+    private boolean has(File file, String name) throws IOException {
+        if (bundle != null && bundle.contains(file))
+            return bundle.get(file, name) != null;
+
+        return open(file).getJarEntry(name) != null;
+    }
+
+    private Class<?> define(String name, File file, Manifest manifest, ByteBuffer bytes, CodeSigner[] signers) throws IOException {
+        URL url = file.toURI().toURL();
+
+        int dot = name.lastIndexOf('.');
+        if (dot > 0 && packageOf(name.substring(0, dot)) == null) {
+            try {
+                if (manifest != null)
+                    definePackage(name.substring(0, dot), manifest, url);
+                else
+                    definePackage(name.substring(0, dot), null, null, null, null, null, null, null);
+            } catch (IllegalArgumentException e) {
+                // another thread got there first
+            }
+        }
+
+        return defineClass(name, bytes, new CodeSource(url, signers));
+    }
+
+    // getDefinedPackage() only came with Java 9 and we still run on 7
+    @SuppressWarnings("deprecation")
+    private Package packageOf(String name) {
+        return getPackage(name);
+    }
+
+    private JarFile open(File file) throws IOException {
+        synchronized (jars) {
+            JarFile jar = jars.get(file);
+            if (jar == null)
+                jars.put(file, jar = openVersioned(file));
+            return jar;
+        }
+    }
+
+    /**
+     * Opens the jar the way URLClassLoader does, multi-release jars serve the
+     * entries for this runtime from Java 9 on.
+     */
+    private static JarFile openVersioned(File file) throws IOException {
+        if (versioned == null)
+            return new JarFile(file);
+
+        try {
+            return versioned.newInstance(file, true, ZipFile.OPEN_READ, runtimeVersion);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] read(JarFile jar, JarEntry entry) throws IOException {
+        InputStream in = jar.getInputStream(entry);
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(entry.getSize() > 0 ? (int)entry.getSize() : 8192);
+            byte[] buf = new byte[8192];
+            int len;
+
+            while ((len = in.read(buf)) != -1)
+                out.write(buf, 0, len);
+
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static URL url(File file, String name) throws MalformedURLException {
+        return new URL("jar:" + file.toURI().toURL() + "!/" + name);
+    }
+
+    private List<Resource> forClass(String name) {
+        int dot = name.lastIndexOf('.');
+        List<Resource> jars = claimed(dot < 0 ? "" : name.substring(0, dot).replace('.', '/'), name, null);
+
+        if (!jars.isEmpty())
+            return jars;
+
+        // nothing says where it is, it can only be in a jar nothing says anything about
+        synchronized (this) {
+            for (Resource jar : lazy) {
+                if (!isClaimed(jar))
+                    jars.add(jar);
+            }
+        }
+
+        return jars;
+    }
+
+    private List<Resource> forResource(String name) {
+        int slash = name.lastIndexOf('/');
+        String path = slash < 0 ? name : name.substring(0, slash);
+        return claimed(path, null, slash < 0 ? "" : path.replace('/', '.'));
+    }
+
+    /**
+     * The lazy jars the index or a package element puts the class or package in.
+     */
+    private synchronized List<Resource> claimed(String path, String className, String packageName) {
+        List<Resource> jars = new ArrayList<Resource>();
+
+        List<Resource> indexed = index.get(path);
+        if (indexed != null)
+            jars.addAll(indexed);
+
+        for (JNLP.PackageMapping mapping : mappings) {
+            boolean matches = className != null ? mapping.matches(className) : mapping.containsPackage(packageName);
+            if (!matches)
+                continue;
+
+            for (Resource jar : lazy) {
+                if (mapping.getPart().equals(jar.getPart()))
+                    jars.add(jar);
+            }
+        }
+
+        return jars;
+    }
+
+    private boolean isClaimed(Resource jar) {
+        for (List<Resource> jars : index.values()) {
+            if (jars.contains(jar))
+                return true;
+        }
+
+        for (JNLP.PackageMapping mapping : mappings) {
+            if (mapping.getPart().equals(jar.getPart()))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Downloads the jars that are still missing along with the rest of their parts.
+     *
+     * Only lookups that need a jar already on its way wait for it, the loader
+     * itself is not held while downloading.
+     */
+    private boolean fetch(List<Resource> wanted) {
+        Set<String> parts = new HashSet<String>();
+        for (Resource jar : wanted) {
+            if (jar.getPart() != null)
+                parts.add(jar.getPart());
+        }
+
+        final List<Resource> jars = new ArrayList<Resource>();
+        List<Future<Boolean>> waiting = new ArrayList<Future<Boolean>>();
+        FutureTask<Boolean> task = null;
+
+        synchronized (this) {
+            for (Resource jar : lazy) {
+                if (!wanted.contains(jar) && !parts.contains(jar.getPart()))
+                    continue;
+
+                Future<Boolean> other = fetching.get(jar);
+                if (other == null)
+                    jars.add(jar);
+                else if (!waiting.contains(other))
+                    waiting.add(other);
+            }
+
+            if (!jars.isEmpty()) {
+                task = new FutureTask<Boolean>(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return download(jars);
+                    }
+                });
+
+                for (Resource jar : jars)
+                    fetching.put(jar, task);
+            }
+        }
+
+        boolean fetched = false;
+
+        if (task != null) {
+            task.run();
+            waiting.add(task);
+        }
+
+        for (Future<Boolean> future : waiting) {
+            try {
+                fetched |= future.get();
+            } catch (ExecutionException e) {
+                // download() reports its own failures
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return fetched;
+    }
+
+    private boolean download(List<Resource> jars) {
+        System.out.println("Fetching lazy " + jars);
+
+        long started = System.currentTimeMillis();
+
+        // the application is blocked on this, it gets all of the bandwidth
+        Updater background = updater;
+        if (background != null)
+            background.pause();
+
+        boolean fetched = false;
+
+        try {
+            for (File file : cache.downloadAll(jars, false)) {
+                addURL(file.toURI().toURL());
+
+                // a jar that can not be indexed leaves only asking every jar
+                PackageIndex index = packages;
+                if (index != null) {
+                    try {
+                        index.add(file);
+                    } catch (IOException e) {
+                        packages = null;
+                    }
+                }
+            }
+
+            fetched = true;
+        } catch (IOException e) {
+            // the lookup fails this time, the next one tries again
+            System.out.println("Failed to fetch " + jars + ": " + e.getMessage());
+        } finally {
+            // on the class path or up for another try, either way nobody waits for it anymore
+            synchronized (this) {
+                if (fetched)
+                    lazy.removeAll(jars);
+                for (Resource jar : jars)
+                    fetching.remove(jar);
+            }
+
+            if (background != null)
+                background.resume();
+
+            // a profile recorded meanwhile covers less of the launch
+            LaunchProfile recording = profile;
+            if (recording != null)
+                recording.stalled(System.currentTimeMillis() - started);
+        }
+
+        return fetched;
+    }
+
+    private void readIndex() {
+        URL url = super.findResource(INDEX);
+        if (url == null)
+            return;
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+
+            try {
+                String line;
+
+                // the version header ends at the first empty line
+                while ((line = reader.readLine()) != null && line.trim().length() > 0);
+
+                // then a jar name and what it has, one block per jar
+                List<Resource> jars = null;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+
+                    if (line.length() == 0) {
+                        jars = null;
+                    } else if (jars == null) {
+                        jars = new ArrayList<Resource>();
+                        for (Resource jar : lazy) {
+                            if (jar.getHref().getPath().endsWith("/" + line))
+                                jars.add(jar);
+                        }
+                    } else if (!jars.isEmpty()) {
+                        List<Resource> existing = index.get(line);
+                        if (existing == null)
+                            index.put(line, existing = new ArrayList<Resource>());
+                        existing.addAll(jars);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Ignoring unreadable jar index: " + e.getMessage());
+        }
+    }
+}
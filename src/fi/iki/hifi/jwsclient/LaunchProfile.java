@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The classes and resources an application looked up in the first seconds
+ * of a launch, in the order it first asked for them.
+ *
+ * A launch without a profile records one, a launch with one has a few
+ * threads load the same classes side by side while the application is
+ * still starting up, so they are there when it gets to them. Classes are
+ * only loaded, never initialized, the application does that in its own
+ * order as usual.
+ *
+ * A profile that no longer matches the application, or that covers much
+ * less than the recording time because the application exited early or
+ * waited on lazy jars, is recorded again.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class LaunchProfile {
+
+    private static final String HEADER = "jwsclient-profile 1 ";
+    private static final String CLASS = "C ";
+    private static final String RESOURCE = "R ";
+
+    // an application that really is done this soon keeps its short profile after a few tries
+    private static final int RETRIES = 2;
+
+    private Set<String> classes = new LinkedHashSet<String>();
+    private Set<String> resources = new LinkedHashSet<String>();
+
+    private File file;
+    private long started;
+    private long deadline;
+    private long stalled;
+    private boolean saved;
+
+    // milliseconds the saved profile covers and how many short ones were recorded in a row
+    private long recorded;
+    private int retries;
+
+    private final AtomicBoolean stale = new AtomicBoolean();
+
+    private LaunchProfile() {
+    }
+
+    /**
+     * Starts recording, what is looked up within the given time is saved to
+     * the file then. The profile it replaces, if any, counts short recordings.
+     */
+    public static LaunchProfile record(File file, long millis, LaunchProfile previous) {
+        final LaunchProfile profile = new LaunchProfile();
+        profile.file = file;
+        profile.started = System.currentTimeMillis();
+        profile.deadline = profile.started + millis;
+        profile.retries = previous != null ? previous.retries + 1 : 0;
+
+        final Timer timer = new Timer("jwsclient-profile", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                profile.save();
+                timer.cancel();
+            }
+        }, millis);
+
+        // an application that is done sooner has a shorter profile
+        Runtime.getRuntime().addShutdownHook(new Thread("jwsclient-profile-shutdown") {
+            @Override
+            public void run() {
+                profile.save();
+            }
+        });
+
+        return profile;
+    }
+
+    public synchronized void classLoaded(String name) {
+        if (!saved && System.currentTimeMillis() < deadline)
+            classes.add(name);
+    }
+
+    public synchronized void resourceFound(String name) {
+        if (!saved && System.currentTimeMillis() < deadline)
+            resources.add(name);
+    }
+
+    /**
+     * Time the application spent waiting on downloads, which the profile does not cover.
+     */
+    public synchronized void stalled(long millis) {
+        if (!saved)
+            stalled += millis;
+    }
+
+    /**
+     * Whether the profile covers about as much as the given recording time
+     * would, or is as long as the application gets.
+     */
+    public boolean isComplete(long millis) {
+        return recorded >= millis / 2 || retries >= RETRIES;
+    }
+
+    /**
+     * Looks the classes and resources up with the given number of threads,
+     * earliest first, and returns without waiting for them.
+     */
+    public void preload(final ClassLoader loader, int threads) {
+        final List<String> names = new ArrayList<String>();
+        for (String name : classes)
+            names.add(CLASS + name);
+        for (String name : resources)
+            names.add(RESOURCE + name);
+
+        final AtomicInteger next = new AtomicInteger();
+        final long started = System.currentTimeMillis();
+        final AtomicInteger running = new AtomicInteger(threads);
+
+        System.out.println("Preloading " + classes.size() + " classes and " + resources.size() + " resources on " + threads + " threads");
+
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread("jwsclient-preload-" + i) {
+                @Override
+                public void run() {
+                    int n;
+                    while ((n = next.getAndIncrement()) < names.size()) {
+                        String name = names.get(n);
+
+                        try {
+                            if (name.startsWith(CLASS))
+                                Class.forName(name.substring(CLASS.length()), false, loader);
+                            else if (loader.getResource(name.substring(RESOURCE.length())) == null)
+                                forget();
+                        } catch (ClassNotFoundException e) {
+                            // gone since the profile was recorded
+                            forget();
+                        } catch (LinkageError e) {
+                            // the application gets the same error when it gets there
+                        }
+                    }
+
+                    if (running.decrementAndGet() == 0)
+                        System.out.println("Preloading done in " + (System.currentTimeMillis() - started) + " ms");
+                }
+            };
+
+            // the application comes first and must not be kept from exiting
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            t.start();
+        }
+    }
+
+    /**
+     * Drops the profile from the disk, the next launch records a new one.
+     */
+    private void forget() {
+        if (stale.getAndSet(true))
+            return;
+
+        if (file.delete())
+            System.out.println("Launch profile " + file + " is out of date, recording it again on the next launch");
+    }
+
+    public static LaunchProfile read(File file) {
+        if (!file.isFile())
+            return null;
+
+        LaunchProfile profile = new LaunchProfile();
+        profile.file = file;
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+            try {
+                String line = reader.readLine();
+                if (line == null || !line.startsWith(HEADER))
+                    return null;
+
+                String[] fields = line.substring(HEADER.length()).split(" ");
+                if (fields.length != 2)
+                    return null;
+
+                profile.recorded = Long.parseLong(fields[0]);
+                profile.retries = Integer.parseInt(fields[1]);
+
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(CLASS))
+                        profile.classes.add(line.substring(CLASS.length()));
+                    else if (line.startsWith(RESOURCE))
+                        profile.resources.add(line.substring(RESOURCE.length()));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+
+        return profile;
+    }
+
+    private synchronized void save() {
+        if (saved)
+            return;
+
+        saved = true;
+
+        long window = deadline - started;
+        recorded = Math.max(0, Math.min(System.currentTimeMillis(), deadline) - started - stalled);
+        if (recorded >= window / 2)
+            retries = 0;
+
+        // written aside and renamed, nobody ever reads half a profile
+        File tmp = new File(file.toString() + ".tmp-" + Long.toHexString(System.nanoTime()));
+
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+
+            try {
+                writer.write(HEADER + recorded + " " + retries + "\n");
+                for (String name : classes)
+                    writer.write(CLASS + name + "\n");
+                for (String name : resources)
+                    writer.write(RESOURCE + name + "\n");
+            } finally {
+                writer.close();
+            }
+
+            if (!tmp.renameTo(file))
+                throw new IOException("Failed to rename " + tmp);
+
+            System.out.println("Saved launch profile of " + classes.size() + " classes and " + resources.size() + " resources covering " + recorded + " ms to " + file);
+        } catch (IOException e) {
+            tmp.delete();
+            System.out.println("Failed to save launch profile: " + e.getMessage());
+        }
+    }
+}
@@ -21,8 +21,8 @@ import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLClassLoader;
 import java.net.URLDecoder;
+import java.util.ArrayList;
 import java.util.List;
 import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
@@ -61,11 +61,15 @@ public class Main {
         lw.setImage(new ImageIcon(Main.class.getResource("res/splash.png")));
 
         try {
+            // mirrors of the directory the descriptor is in, known before the descriptor is
+            String jnlpBase = jnlpURL.toString().substring(0, jnlpURL.toString().lastIndexOf('/') + 1);
+            cache.addMirrors(jnlpBase, MirrorTransport.parseMirrors(System.getProperty("jwsclient.mirrors")));
+
             // get local path for jnlp file
             File jnlpFile = cache.fromURL(jnlpURL);
 
             // show loading window immediately if needed
-            if (!jnlpFile.exists())
+            if (!cache.isCached(jnlpURL))
                 cache.setWindow(lw);
 
             // make sure we have a jnlp file
@@ -73,12 +77,27 @@ public class Main {
 
             // try to parse it, if parsing fails redownload to be double sure
             try {
-                jnlp = new JNLP(jnlpFile);
+                jnlp = JNLP.load(jnlpFile, jnlpURL, cache.getSha1(jnlpURL));
             } catch(IOException e) {
                 jnlpFile = cache.download(jnlpURL, true);
-                jnlp = new JNLP(jnlpFile);
+                jnlp = JNLP.load(jnlpFile, jnlpURL, cache.getSha1(jnlpURL));
+            }
+
+            // the descriptor may tell how long its resources stay fresh
+            String maxAge = jnlp.getProperty("jwsclient.max-age");
+            if (maxAge != null) {
+                try {
+                    cache.setMaxAge(Long.parseLong(maxAge));
+                } catch (NumberFormatException e) {
+                    System.out.println("Ignoring invalid jwsclient.max-age: " + maxAge);
+                }
             }
 
+            // and the descriptor may list mirrors of its codebase
+            String mirrors = jnlp.getProperty("jwsclient.mirrors");
+            if (mirrors != null && jnlp.getCodebase() != null)
+                cache.addMirrors(jnlp.getCodebase(), MirrorTransport.parseMirrors(mirrors));
+
             // second, download our real splash image so we can replace the temp one
             splashURL = jnlp.getSplash();
             if (splashURL != null) {
@@ -88,21 +107,106 @@ public class Main {
             }
             cache.setWindow(lw);
 
-            // finally, download all jar files
-            List<URL> jarList = jnlp.getJarList();
-            URL[] localJars = new URL[jarList.size()];
+            // extensions bring their own jars and libraries, all of them come before any jar
+            ResourceGraph graph = new ResourceGraph(cache, jnlpURL, jnlp);
+            graph.resolve();
+
+            // finally, the jar files
+            List<Resource> jarList = graph.getJars();
+
+            // lazy jars wait until the application needs them
+            List<Resource> eagerList = new ArrayList<Resource>();
+            List<Resource> lazyList = new ArrayList<Resource>();
+            for (Resource jar : jarList) {
+                if (jar.isLazy())
+                    lazyList.add(jar);
+                else
+                    eagerList.add(jar);
+            }
+
+            // native libraries are needed before the first class that loads one, never lazy
+            List<Resource> nativeLibs = graph.getNativeLibs();
+
+            // a consistent set from an earlier launch or update is a single lookup away
+            List<File> jarFiles = cache.openGeneration(jnlpURL, eagerList);
+            if (jarFiles == null) {
+                // one batch, no connection sits idle between the jars and the libraries
+                List<Resource> wanted = new ArrayList<Resource>(eagerList);
+                wanted.addAll(nativeLibs);
+                jarFiles = new ArrayList<File>(cache.downloadAll(wanted, false).subList(0, eagerList.size()));
+                cache.stageGeneration(jnlpURL, eagerList);
+
+                List<File> staged = cache.openGeneration(jnlpURL, eagerList);
+                if (staged != null)
+                    jarFiles = staged;
+            } else if (!nativeLibs.isEmpty()) {
+                // a generation only holds the class path
+                cache.downloadAll(nativeLibs, false);
+            }
+
+            List<File> nativeDirs = new ArrayList<File>();
+            for (Resource lib : nativeLibs)
+                nativeDirs.add(cache.extractNatives(lib));
+
+            // keep what this descriptor needs out of reach of the sweeper
+            List<URL> references = new ArrayList<URL>();
+            for (Resource extension : graph.getExtensions())
+                references.add(extension.getLocation());
+            for (Resource jar : jarList)
+                references.add(jar.getLocation());
+            for (Resource lib : nativeLibs)
+                references.add(lib.getLocation());
+            if (splashURL != null)
+                references.add(splashURL);
+            cache.setReferences(jnlpURL, references);
+
+            // a heap or flags this virtual machine does not have mean running in another one,
+            // which launches again from what is in the cache now
+            JvmLauncher launcher = new JvmLauncher(jnlp);
+            String vm = JvmLauncher.getArchiveKey();
+            if (vm != null)
+                launcher.setArchive(cache.getClassArchive(jnlpURL, jarFiles, vm));
+
+            if (!"false".equals(System.getProperty("jwsclient.fork")) && launcher.isNeeded()) {
+                lw.setVisible(false);
+                lw.dispose();
+                System.exit(launcher.run(args));
+            }
+            launcher.setProperties();
+
+            URL[] localJars = new URL[jarFiles.size()];
             int i = 0;
-            for (URL jar : jarList) {
-                cache.download(jar);
-                localJars[i++] = cache.fromURL(jar).toURI().toURL();
+            for (File jarFile : jarFiles) {
+                localJars[i++] = jarFile.toURI().toURL();
+            }
+
+            PackageIndex packages = cache.openPackageIndex(jnlpURL, jarFiles);
+            LaunchBundle bundle = packages != null ? cache.openBundle(jnlpURL, jarFiles) : null;
+            LaunchClassLoader loader = new LaunchClassLoader(localJars, packages, bundle, cache, lazyList, graph.getPackages(), nativeDirs);
+
+            // what the last launch of this generation looked up first is looked up side by side with it,
+            // a generation without a profile, or with one cut short, records one
+            long profileTime = Long.getLong("jwsclient.profile-time", 10) * 1000;
+            File profileFile = profileTime > 0 ? cache.getLaunchProfile(jnlpURL, jarFiles) : null;
+            if (profileFile != null) {
+                LaunchProfile profile = LaunchProfile.read(profileFile);
+                if (profile != null && profile.isComplete(profileTime))
+                    profile.preload(loader, Integer.getInteger("jwsclient.preload-threads", Math.max(1, Runtime.getRuntime().availableProcessors() - 1)));
+                else
+                    loader.setProfile(LaunchProfile.record(profileFile, profileTime, profile));
             }
 
-            Class client = new URLClassLoader(localJars).loadClass(jnlp.getMainClass());
+            Class client = loader.loadClass(jnlp.getMainClass());
             Method mainMethod = client.getMethod("main", (new String[1]).getClass());
 
             // prevent download window when doing background dl
             cache.setWindow(null);
 
+            // revalidate everything while the application runs instead of after it
+            Updater updater = new Updater(cache, jnlpURL, splashURL, graph.getExtensions(), jarList, nativeLibs);
+            loader.setUpdater(updater);
+            updater.start();
+
             lw.setVisible(false);
             lw.dispose();
             lw = null;
@@ -140,24 +244,6 @@ public class Main {
                     }
                 }
             }
-
-            // after main returns, do our background updating
-            System.out.println("Doing background update...");
-
-            try {
-                cache.download(jnlpURL, true);
-                if (splashURL != null)
-                    cache.download(splashURL, true);
-
-                for (URL jar : jarList)
-                    cache.download(jar, true);
-
-                System.out.println("Done! Quitting.");
-            } catch (IOException e) {
-                System.out.println("Background update failed: " + e.getMessage());
-            }
-
-
         } catch (Exception e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(null, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mirror failover, hedged requests and retries on top of another transport.
+ *
+ * A request that has not got its headers back within the 95th percentile of
+ * what the host usually takes is sent to the next mirror as well, whichever
+ * answers first is used. Connection errors and server errors fail over to the
+ * next mirror right away, and when every mirror failed the whole round is
+ * retried after an exponential backoff with full jitter.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class MirrorTransport extends Transport {
+
+    // latencies remembered per host for the percentile
+    private static final int SAMPLES = 64;
+
+    // below this many samples the configured delay is used as is
+    private static final int MIN_SAMPLES = 8;
+
+    private static final long BACKOFF_BASE = 250;
+    private static final long BACKOFF_MAX = 8000;
+
+    private Transport delegate;
+    private List<Mirror> mirrors = new CopyOnWriteArrayList<Mirror>();
+    private ConcurrentMap<String, Latency> latencies = new ConcurrentHashMap<String, Latency>();
+    private Random random = new Random();
+    private long hedgeDelay;
+    private int retries;
+
+    private ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "jwsclient-request");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    public MirrorTransport(Transport delegate) {
+        super(delegate.connectTimeout, delegate.readTimeout, delegate.proxy);
+        this.delegate = delegate;
+        this.hedgeDelay = Long.getLong("jwsclient.hedge-delay", 1000);
+        this.retries = Integer.getInteger("jwsclient.retries", 3);
+    }
+
+    /**
+     * Serves everything under codebase from the mirrors too, in the given order.
+     */
+    public void addMirrors(String codebase, List<String> bases) {
+        for (String base : bases) {
+            Mirror mirror = new Mirror(withSlash(codebase), withSlash(base));
+            if (!mirror.origin.equals(mirror.base) && !mirrors.contains(mirror))
+                mirrors.add(mirror);
+        }
+    }
+
+    /**
+     * Mirror codebases separated by whitespace or commas, as written in configuration.
+     */
+    public static List<String> parseMirrors(String value) {
+        List<String> bases = new ArrayList<String>();
+        if (value == null)
+            return bases;
+
+        for (String base : Arrays.asList(value.trim().split("[\\s,]+"))) {
+            if (base.length() > 0)
+                bases.add(base);
+        }
+
+        return bases;
+    }
+
+    @Override
+    public Response get(URL url, Map<String, String> headers) throws IOException {
+        List<URL> candidates = candidates(url);
+        IOException failure;
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return race(url, candidates, headers);
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            if (attempt >= retries)
+                throw failure;
+
+            // full jitter, launchers that failed together do not come back together
+            long backoff = Math.min(BACKOFF_MAX, BACKOFF_BASE << attempt);
+            long sleep = (long)(random.nextDouble() * backoff);
+            System.out.println("Retrying " + url + " in " + sleep + " ms: " + describe(failure));
+
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw failure;
+            }
+        }
+    }
+
+    @Override
+    public boolean isMultiplexed(URL url) {
+        return delegate.isMultiplexed(url);
+    }
+
+    private Response race(URL url, List<URL> candidates, Map<String, String> headers) throws IOException {
+        // nothing to hedge with, no need for another thread either
+        if (candidates.size() == 1)
+            return check(attempt(url, headers), false);
+
+        CompletionService<Response> service = new ExecutorCompletionService<Response>(executor);
+        List<Future<Response>> started = new ArrayList<Future<Response>>();
+        Future<Response> winner = null;
+        IOException failure = null;
+        long delay = hedgeDelay(url);
+        int next = 0;
+        int pending = 0;
+
+        try {
+            started.add(service.submit(call(candidates.get(next++), headers)));
+            pending++;
+
+            while (pending > 0) {
+                Future<Response> done = next < candidates.size() ? service.poll(delay, TimeUnit.MILLISECONDS) : service.take();
+
+                // the tail end of the latency curve, ask the next mirror as well
+                if (done == null) {
+                    System.out.println("Hedging " + url + " with " + candidates.get(next));
+                    started.add(service.submit(call(candidates.get(next++), headers)));
+                    pending++;
+                    continue;
+                }
+
+                pending--;
+
+                try {
+                    Response response = check(done.get(), started.indexOf(done) > 0);
+                    winner = done;
+                    return response;
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+                } catch (IOException e) {
+                    failure = e;
+                }
+
+                // a failure is not worth waiting out, go to the next one right away
+                if (pending == 0 && next < candidates.size()) {
+                    System.out.println("Failing over " + url + " to " + candidates.get(next) + ": " + describe(failure));
+                    started.add(service.submit(call(candidates.get(next++), headers)));
+                    pending++;
+                }
+            }
+
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while requesting " + url);
+        } finally {
+            for (Future<Response> future : started) {
+                if (future != winner)
+                    discard(future);
+            }
+        }
+    }
+
+    private Callable<Response> call(final URL url, final Map<String, String> headers) {
+        return new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return attempt(url, headers);
+            }
+        };
+    }
+
+    private Response attempt(URL url, Map<String, String> headers) throws IOException {
+        long start = System.currentTimeMillis();
+        Response response = delegate.get(url, headers);
+        latency(url).add(System.currentTimeMillis() - start);
+        return response;
+    }
+
+    /**
+     * Server errors are failures too, and so is a mirror that does not have the file yet.
+     */
+    private Response check(Response response, boolean mirror) throws IOException {
+        int status = response.getStatus();
+
+        if (status >= 500 || (mirror && status == 404)) {
+            response.close();
+            throw new IOException(status + " " + response.getMessage());
+        }
+
+        return response;
+    }
+
+    private void discard(final Future<Response> future) {
+        // a loser still on its way is closed once it arrives
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.get().close();
+                } catch (Exception e) {
+                    // failed anyway
+                }
+            }
+        });
+    }
+
+    private long hedgeDelay(URL url) {
+        long p95 = latency(url).percentile(0.95);
+        return p95 < 0 ? hedgeDelay : Math.max(10, p95);
+    }
+
+    private Latency latency(URL url) {
+        String host = url.getHost() + ":" + url.getPort();
+        Latency latency = latencies.get(host);
+
+        if (latency == null) {
+            latencies.putIfAbsent(host, new Latency());
+            latency = latencies.get(host);
+        }
+
+        return latency;
+    }
+
+    private List<URL> candidates(URL url) {
+        List<URL> candidates = new ArrayList<URL>();
+        candidates.add(url);
+
+        String location = url.toString();
+        for (Mirror mirror : mirrors) {
+            if (!location.startsWith(mirror.origin))
+                continue;
+
+            try {
+                candidates.add(new URL(mirror.base + location.substring(mirror.origin.length())));
+            } catch (MalformedURLException e) {
+                System.out.println("Ignoring invalid mirror: " + mirror.base);
+            }
+        }
+
+        return candidates;
+    }
+
+    private static String describe(IOException e) {
+        // connection errors often come without a message
+        return e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+
+    private static String withSlash(String base) {
+        return base.endsWith("/") ? base : base + "/";
+    }
+
+    private static class Mirror {
+
+        private String origin;
+        private String base;
+
+        private Mirror(String origin, String base) {
+            this.origin = origin;
+            this.base = base;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Mirror && ((Mirror)o).origin.equals(origin) && ((Mirror)o).base.equals(base);
+        }
+
+        @Override
+        public int hashCode() {
+            return origin.hashCode() * 31 + base.hashCode();
+        }
+    }
+
+    private static class Latency {
+
+        private long[] samples = new long[SAMPLES];
+        private int count;
+
+        private synchronized void add(long millis) {
+            samples[count++ % SAMPLES] = millis;
+        }
+
+        /**
+         * -1 until there are enough samples to say anything.
+         */
+        private synchronized long percentile(double p) {
+            int n = Math.min(count, SAMPLES);
+            if (n < MIN_SAMPLES)
+                return -1;
+
+            long[] sorted = Arrays.copyOf(samples, n);
+            Arrays.sort(sorted);
+            return sorted[(int)Math.ceil(p * n) - 1];
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Native libraries extracted from nativelib jars, one directory per jar
+ * content named after its SHA-1.
+ *
+ * A directory is complete once it exists, extraction happens in a temporary
+ * directory that is renamed into place. Every application using the same
+ * version of a library shares the directory.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class NativeStore {
+
+    // directories younger than this may belong to a launch that just extracted them
+    private static final long EXTRACT_AGE = 60 * 60 * 1000;
+
+    private File root;
+
+    public NativeStore(File root) {
+        this.root = root;
+    }
+
+    /**
+     * The directory with the libraries of the jar, extracted if not yet there.
+     */
+    public File extract(File jar, String sha1) throws IOException {
+        File dir = new File(root, sha1);
+        if (dir.isDirectory())
+            return dir;
+
+        if (!root.isDirectory() && !root.mkdirs())
+            throw new IOException("Failed to create native library path: " + root);
+
+        File tmp = new File(root, sha1 + ".tmp-" + Long.toHexString(System.nanoTime()));
+        if (!tmp.mkdir())
+            throw new IOException("Failed to create " + tmp);
+
+        JarFile zip = new JarFile(jar);
+
+        try {
+            byte[] buf = new byte[65536];
+            Enumeration<JarEntry> entries = zip.entries();
+            File parent = tmp.getCanonicalFile();
+
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+
+                // the libraries live in the root, anything deeper is not ours to load
+                if (entry.isDirectory() || entry.getName().indexOf('/') >= 0)
+                    continue;
+
+                // nor is a name that leads elsewhere, a backslash or a drive on Windows
+                File file = new File(tmp, entry.getName()).getCanonicalFile();
+                if (!parent.equals(file.getParentFile())) {
+                    System.out.println("Skipping " + entry.getName() + " in " + jar.getName() + ", it is not a plain file name");
+                    continue;
+                }
+
+                InputStream in = zip.getInputStream(entry);
+                OutputStream out = new FileOutputStream(file);
+
+                try {
+                    int len;
+                    while ((len = in.read(buf)) != -1)
+                        out.write(buf, 0, len);
+                } finally {
+                    out.close();
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            delete(tmp);
+            throw e;
+        } finally {
+            zip.close();
+        }
+
+        // another launcher may have been quicker, its copy is just as good
+        if (!tmp.renameTo(dir)) {
+            delete(tmp);
+            if (!dir.isDirectory())
+                throw new IOException("Failed to move " + tmp + " to " + dir);
+        }
+
+        System.out.println("Extracted native libraries of " + jar.getName() + " to " + dir);
+        return dir;
+    }
+
+    /**
+     * Deletes the directories of jars that are no longer in the cache.
+     */
+    public void retain(Set<String> live) {
+        File[] dirs = root.listFiles();
+        if (dirs == null)
+            return;
+
+        long now = System.currentTimeMillis();
+
+        for (File dir : dirs) {
+            String name = dir.getName();
+            int dot = name.indexOf('.');
+
+            if (!live.contains(dot < 0 ? name : name.substring(0, dot)) && dir.lastModified() < now - EXTRACT_AGE)
+                delete(dir);
+        }
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+
+        dir.delete();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Which jars have which packages, so a class lookup goes straight to the
+ * jars that can have it instead of asking every jar in turn.
+ *
+ * Like the INDEX.LIST of the jar tool but worked out from the central
+ * directories of the jars themselves. A package is a directory path, files
+ * in the root of a jar are indexed by their own name.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class PackageIndex {
+
+    private static final String MULTI_RELEASE = "Multi-Release";
+    private static final Pattern VERSIONED = Pattern.compile("META-INF/versions/[0-9]+/(.+)");
+
+    private List<File> jars = new ArrayList<File>();
+    private Map<String, List<File>> paths = new HashMap<String, List<File>>();
+
+    /**
+     * Adds a jar after the ones already in, class path order is kept.
+     */
+    public void add(File jar) throws IOException {
+        add(jar, scan(jar));
+    }
+
+    private synchronized void add(File jar, Set<String> packages) {
+        jars.add(jar);
+
+        for (String path : packages) {
+            List<File> having = paths.get(path);
+            if (having == null)
+                paths.put(path, having = new ArrayList<File>(1));
+            having.add(jar);
+        }
+    }
+
+    /**
+     * The jars that have something in the package of the entry, null if none does.
+     * The list is a copy, a lazy jar may be added while the caller goes through it.
+     */
+    public synchronized List<File> get(String entry) {
+        List<File> having = paths.get(packageOf(entry));
+        return having != null ? new ArrayList<File>(having) : null;
+    }
+
+    /**
+     * Entry names are slash separated, directory entries end with a slash.
+     */
+    public static String packageOf(String entry) {
+        if (entry.endsWith("/"))
+            entry = entry.substring(0, entry.length() - 1);
+
+        int slash = entry.lastIndexOf('/');
+        return slash < 0 ? entry : entry.substring(0, slash);
+    }
+
+    /**
+     * The packages of a jar, only its central directory is read.
+     *
+     * Entries under META-INF/versions/N/ of a multi-release jar count for the
+     * package they replace, a runtime that does not use them just misses once.
+     */
+    public static Set<String> scan(File jar) throws IOException {
+        Set<String> packages = new LinkedHashSet<String>();
+        ZipFile zip = new ZipFile(jar);
+
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                Matcher versioned = VERSIONED.matcher(name);
+                if (versioned.matches())
+                    packages.add(packageOf(versioned.group(1)));
+                packages.add(packageOf(name));
+            }
+        } finally {
+            zip.close();
+        }
+
+        return packages;
+    }
+
+    /**
+     * True if the manifest says Multi-Release: true.
+     */
+    public static boolean isMultiRelease(File jar) throws IOException {
+        JarFile file = new JarFile(jar, false);
+
+        try {
+            Manifest manifest = file.getManifest();
+            return manifest != null && "true".equalsIgnoreCase(manifest.getMainAttributes().getValue(MULTI_RELEASE));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Saves the index next to the jars, one package per line.
+     */
+    public synchronized void write(File file) throws IOException {
+        Map<File, StringBuilder> lines = new HashMap<File, StringBuilder>();
+        for (File jar : jars)
+            lines.put(jar, new StringBuilder());
+
+        for (Map.Entry<String, List<File>> e : paths.entrySet()) {
+            for (File jar : e.getValue())
+                lines.get(jar).append(jar.getName()).append('\t').append(e.getKey()).append('\n');
+        }
+
+        // written aside and renamed, nobody ever reads half an index
+        File tmp = new File(file.toString() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+
+        try {
+            for (File jar : jars)
+                writer.write(lines.get(jar).length() > 0 ? lines.get(jar).toString() : jar.getName() + "\t\n");
+        } finally {
+            writer.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to save " + file);
+        }
+    }
+
+    /**
+     * Loads an index written for exactly the given jars, null if there is none.
+     * Jars are known by their names, which are unique within a generation.
+     */
+    public static PackageIndex read(File file, List<File> jars) {
+        if (!file.isFile())
+            return null;
+
+        Map<String, File> byName = new HashMap<String, File>();
+        for (File jar : jars)
+            byName.put(jar.getName(), jar);
+
+        Map<File, Set<String>> packages = new HashMap<File, Set<String>>();
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    File jar = tab < 0 ? null : byName.get(line.substring(0, tab));
+                    if (jar == null)
+                        return null;
+
+                    Set<String> having = packages.get(jar);
+                    if (having == null)
+                        packages.put(jar, having = new LinkedHashSet<String>());
+
+                    if (tab < line.length() - 1)
+                        having.add(line.substring(tab + 1));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        // a jar the index does not know about would never be looked in
+        if (packages.size() != jars.size())
+            return null;
+
+        PackageIndex index = new PackageIndex();
+        for (File jar : jars)
+            index.add(jar, packages.get(jar));
+
+        return index;
+    }
+}
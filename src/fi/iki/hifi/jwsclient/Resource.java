@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * A downloadable resource, optionally pinned to a version with the JNLP
+ * version-based download protocol.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class Resource {
+
+    private URL href;
+    private String version;
+    private String sha1;
+    private boolean lazy;
+    private String part;
+
+    public Resource(URL href) {
+        this(href, null);
+    }
+
+    public Resource(URL href, String version) {
+        this(href, version, null);
+    }
+
+    public Resource(URL href, String version, String sha1) {
+        this(href, version, sha1, false, null);
+    }
+
+    public Resource(URL href, String version, String sha1, boolean lazy, String part) {
+        this.href = href;
+        this.version = version != null && version.trim().length() > 0 ? version.trim() : null;
+        this.sha1 = sha1 != null && sha1.trim().length() > 0 ? sha1.trim().toLowerCase() : null;
+        this.lazy = lazy;
+        this.part = part != null && part.trim().length() > 0 ? part.trim() : null;
+    }
+
+    public URL getHref() {
+        return href;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Expected SHA-1 of the content if the descriptor published one.
+     */
+    public String getSha1() {
+        return sha1;
+    }
+
+    /**
+     * Not needed to start the application, fetched when a class from it is.
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * The part this resource is fetched together with, null if none.
+     */
+    public String getPart() {
+        return part;
+    }
+
+    /**
+     * An exact version never changes once downloaded, ranges like 1.2+ or 1.2* do.
+     */
+    public boolean isImmutable() {
+        return version != null && version.indexOf('+') < 0 && version.indexOf('*') < 0 && version.indexOf(' ') < 0;
+    }
+
+    /**
+     * The URL that is actually requested from the server.
+     */
+    public URL getLocation() {
+        return getLocation(null);
+    }
+
+    /**
+     * The URL of an incremental update from the given cached version.
+     */
+    public URL getLocation(String currentVersion) {
+        if (version == null)
+            return href;
+
+        try {
+            String query = "version-id=" + URLEncoder.encode(version, "UTF-8");
+            if (currentVersion != null)
+                query += "&current-version-id=" + URLEncoder.encode(currentVersion, "UTF-8");
+
+            return new URL(href.toString() + (href.getQuery() == null ? "?" : "&") + query);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return version == null ? href.toString() : href + " (" + version + ")";
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A descriptor and the extension descriptors it needs, directly or not.
+ *
+ * Extensions are fetched side by side, each one queues its own extensions
+ * as soon as it is parsed. The resources are combined in a fixed order no
+ * matter which descriptor came in first: the descriptor itself, then each
+ * extension depth first in the order they are listed. An extension used
+ * by several others is only fetched and counted once.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class ResourceGraph {
+
+    private Cache cache;
+    private URL rootURL;
+    private JNLP root;
+    private ExecutorService executor;
+
+    // keyed by the URL as a string, URL.equals would go and resolve the host
+    private ConcurrentMap<String, Future<JNLP>> nodes = new ConcurrentHashMap<String, Future<JNLP>>();
+    private Set<String> seen = new HashSet<String>();
+
+    private List<Resource> extensions = new ArrayList<Resource>();
+    private List<Resource> jars = new ArrayList<Resource>();
+    private List<Resource> nativeLibs = new ArrayList<Resource>();
+    private List<JNLP.PackageMapping> packages = new ArrayList<JNLP.PackageMapping>();
+
+    public ResourceGraph(Cache cache, URL rootURL, JNLP root) {
+        this.cache = cache;
+        this.rootURL = rootURL;
+        this.root = root;
+    }
+
+    /**
+     * Fetches every extension that is not in the cache yet and combines the resources.
+     */
+    public void resolve() throws IOException {
+        if (root.getExtensions().isEmpty()) {
+            add(root);
+            return;
+        }
+
+        executor = Executors.newFixedThreadPool(Integer.getInteger("jwsclient.connections", 4), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "jwsclient-extensions");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            for (Resource extension : root.getExtensions())
+                visit(extension);
+
+            seen.add(rootURL.toString());
+            walk(root);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The extension descriptors, for revalidating them later.
+     */
+    public List<Resource> getExtensions() {
+        return extensions;
+    }
+
+    public List<Resource> getJars() {
+        return jars;
+    }
+
+    public List<Resource> getNativeLibs() {
+        return nativeLibs;
+    }
+
+    public List<JNLP.PackageMapping> getPackages() {
+        return packages;
+    }
+
+    private void visit(final Resource extension) {
+        FutureTask<JNLP> task = new FutureTask<JNLP>(new Callable<JNLP>() {
+            @Override
+            public JNLP call() throws Exception {
+                File file = cache.download(extension, false);
+                JNLP jnlp;
+
+                try {
+                    jnlp = JNLP.load(file, extension.getHref(), cache.getSha1(extension.getLocation()));
+                } catch (IOException e) {
+                    // same as the main descriptor, a broken copy gets one more chance
+                    file = cache.download(extension, true);
+                    jnlp = JNLP.load(file, extension.getHref(), cache.getSha1(extension.getLocation()));
+                }
+
+                // queued before this one is done, so walk always finds them
+                for (Resource child : jnlp.getExtensions())
+                    visit(child);
+
+                return jnlp;
+            }
+        });
+
+        // an extension pointing back at the application adds nothing
+        String key = extension.getLocation().toString();
+        if (!key.equals(rootURL.toString()) && nodes.putIfAbsent(key, task) == null)
+            executor.execute(task);
+    }
+
+    private void walk(JNLP jnlp) throws IOException {
+        add(jnlp);
+
+        for (Resource extension : jnlp.getExtensions()) {
+            String key = extension.getLocation().toString();
+            if (!seen.add(key))
+                continue;
+
+            extensions.add(extension);
+
+            try {
+                walk(nodes.get(key).get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException)e.getCause();
+                throw new IOException("Failed to resolve " + extension, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while resolving " + extension);
+            }
+        }
+    }
+
+    private void add(JNLP jnlp) {
+        // a jar shared by two extensions is on the class path once, where it first appears
+        for (Resource jar : jnlp.getJars()) {
+            if (seen.add(jar.getLocation().toString()))
+                jars.add(jar);
+        }
+
+        for (Resource lib : jnlp.getNativeLibs()) {
+            if (seen.add(lib.getLocation().toString()))
+                nativeLibs.add(lib);
+        }
+
+        packages.addAll(jnlp.getPackages());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches one large resource over several connections at once.
+ *
+ * The first segment is read from the already open connection, the rest are
+ * requested with Range/If-Range and written at their offsets into a
+ * preallocated file.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class SegmentedDownload {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Transport transport;
+    private URL url;
+    private String validator;
+    private File file;
+    private long length;
+    private int segments;
+    private DownloadProgress progress;
+
+    public SegmentedDownload(Transport transport, URL url, String validator, File file, long length, DownloadProgress progress) {
+        this.transport = transport;
+        this.url = url;
+        this.validator = validator;
+        this.file = file;
+        this.length = length;
+        this.segments = Integer.getInteger("jwsclient.segments", 4);
+        this.progress = progress;
+    }
+
+    /**
+     * Checks if a fresh 200 response is worth splitting up.
+     */
+    public static boolean accepts(Transport.Response response, long length, String validator) {
+        int segments = Integer.getInteger("jwsclient.segments", 4);
+        long threshold = Long.getLong("jwsclient.segment-threshold", 16 * 1024 * 1024);
+
+        return segments > 1
+            && validator != null
+            && length >= threshold
+            && "bytes".equalsIgnoreCase(response.getHeader("Accept-Ranges"));
+    }
+
+    public void run(Transport.Response first) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        ExecutorService executor = Executors.newFixedThreadPool(segments - 1);
+
+        try {
+            raf.setLength(length);
+            final FileChannel channel = raf.getChannel();
+            long size = (length + segments - 1) / segments;
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+            for (int i = 1; i < segments; i++) {
+                final long start = i * size;
+                final long end = Math.min(length, start + size);
+
+                if (start >= end)
+                    break;
+
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        fetch(channel, start, end);
+                        return null;
+                    }
+                }));
+            }
+
+            // the connection we already have serves the first segment
+            try {
+                copy(first.getBody(), channel, 0, Math.min(size, length));
+            } finally {
+                first.close();
+            }
+
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException
+                        ? (IOException)e.getCause()
+                        : new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while downloading.");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            raf.close();
+        }
+    }
+
+    private void fetch(FileChannel channel, long start, long end) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Range", "bytes=" + start + "-" + (end - 1));
+        headers.put("If-Range", validator);
+
+        Transport.Response response = transport.get(url, headers);
+
+        try {
+            // anything but our exact range means the resource changed under us
+            String range = response.getHeader("Content-Range");
+            if (response.getStatus() != 206 || range == null || !range.startsWith("bytes " + start + "-"))
+                throw new IOException("Segment " + start + "-" + (end - 1) + " of " + url + " failed: " + response.getStatus());
+
+            copy(response.getBody(), channel, start, end - start);
+        } finally {
+            response.close();
+        }
+    }
+
+    private void copy(InputStream in, FileChannel channel, long position, long count) throws IOException {
+        ContentEncoding.CountingInputStream counting = new ContentEncoding.CountingInputStream(in, progress);
+        byte[] buf = new byte[BUFFER_SIZE];
+        long left = count;
+
+        // positional writes are safe to run concurrently on one channel
+        try {
+            while (left > 0) {
+                int n = counting.read(buf, 0, (int)Math.min(buf.length, left));
+                if (n <= 0)
+                    throw new IOException("Segment of " + url + " ended " + left + " bytes short.");
+
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                while (bb.hasRemaining())
+                    position += channel.write(bb, position);
+
+                left -= n;
+            }
+        } finally {
+            // the connection is closed by the caller, the stream is left open for it
+            counting.flush();
+        }
+    }
+}
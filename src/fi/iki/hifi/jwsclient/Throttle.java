@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+/**
+ * Bandwidth limit and pause switch shared by the transfers of a batch.
+ *
+ * Transfers report what they received after the fact and are held back
+ * until the average rate is under the limit again.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class Throttle {
+
+    private long rate;
+    private int pauses;
+    private long next;
+
+    /**
+     * @param rate bytes per second, zero for no limit
+     */
+    public Throttle(long rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * Holds transfers back until resumed, pauses nest.
+     */
+    public synchronized void pause() {
+        pauses++;
+    }
+
+    public synchronized void resume() {
+        if (pauses > 0)
+            pauses--;
+        notifyAll();
+    }
+
+    public synchronized boolean isPaused() {
+        return pauses > 0;
+    }
+
+    /**
+     * Resumes and drops the limit, for when nobody is waiting on the bandwidth anymore.
+     */
+    public synchronized void lift() {
+        rate = 0;
+        pauses = 0;
+        notifyAll();
+    }
+
+    public void acquire(long bytes) {
+        long delay;
+
+        try {
+            synchronized (this) {
+                while (pauses > 0)
+                    wait();
+
+                if (rate <= 0)
+                    return;
+
+                long now = System.nanoTime();
+                next = Math.max(next, now) + bytes * 1000000000L / rate;
+                delay = next - now;
+            }
+
+            // sleep outside the lock so pause and lift are never held up
+            if (delay > 0)
+                Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
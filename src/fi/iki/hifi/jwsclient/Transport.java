@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How the cache talks HTTP.
+ *
+ * The HTTP/2 client of Java 11 is used when the VM has it, it multiplexes
+ * every request to a host over one connection. Older VMs get
+ * HttpURLConnection with its keep-alive cache.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+public abstract class Transport {
+
+    protected int connectTimeout;
+    protected int readTimeout;
+    protected Proxy proxy;
+
+    protected Transport(int connectTimeout, int readTimeout, Proxy proxy) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.proxy = proxy;
+    }
+
+    /**
+     * Sends a GET, the response headers are in when this returns.
+     */
+    public abstract Response get(URL url, Map<String, String> headers) throws IOException;
+
+    /**
+     * True if concurrent requests to the host of url share a connection.
+     */
+    public boolean isMultiplexed(URL url) {
+        return false;
+    }
+
+    public static Transport create() {
+        int connectTimeout = Integer.getInteger("jwsclient.connect-timeout", 5000);
+        int readTimeout = Integer.getInteger("jwsclient.read-timeout", 5000);
+        Proxy proxy = parseProxy(System.getProperty("jwsclient.proxy"));
+        String name = System.getProperty("jwsclient.transport", "auto");
+
+        if (!name.equals("urlconnection")) {
+            try {
+                return new HttpClientTransport(connectTimeout, readTimeout, proxy);
+            } catch (Exception e) {
+                // Java 10 or older
+                if (name.equals("http2"))
+                    System.out.println("HTTP/2 transport is not available: " + e);
+            }
+        }
+
+        return new UrlConnectionTransport(connectTimeout, readTimeout, proxy);
+    }
+
+    /**
+     * host:port of an HTTP proxy, "direct" for none, null to use the system settings.
+     */
+    private static Proxy parseProxy(String value) {
+        if (value == null || value.trim().length() == 0)
+            return null;
+
+        value = value.trim();
+        if (value.equalsIgnoreCase("direct"))
+            return Proxy.NO_PROXY;
+
+        int colon = value.lastIndexOf(':');
+
+        try {
+            return new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1))));
+        } catch (RuntimeException e) {
+            System.out.println("Ignoring invalid jwsclient.proxy: " + value);
+            return null;
+        }
+    }
+
+    /**
+     * The proxy setting as a selector, for APIs that want one.
+     */
+    protected ProxySelector getProxySelector() {
+        if (proxy == null)
+            return ProxySelector.getDefault();
+
+        return new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                return Collections.singletonList(proxy);
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+            }
+        };
+    }
+
+    /**
+     * A response whose headers have arrived, the body is read on demand.
+     */
+    public interface Response {
+
+        int getStatus();
+
+        String getMessage();
+
+        /**
+         * The first value of a header, names are case insensitive.
+         */
+        String getHeader(String name);
+
+        InputStream getBody() throws IOException;
+
+        /**
+         * Done with the response, the connection goes back for reuse if it can.
+         */
+        void close();
+    }
+}
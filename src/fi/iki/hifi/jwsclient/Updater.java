@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Revalidates an application in the background while it runs.
+ *
+ * The launch uses what is in the cache, this brings the cache up to date
+ * for the next launch. It runs on a low priority thread over a few
+ * connections and within a bandwidth limit, and gets a grace period to
+ * finish when the application exits.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class Updater {
+
+    private Cache cache;
+    private URL descriptor;
+    private URL splash;
+    private List<Resource> extensions;
+    private List<Resource> jars;
+    private List<Resource> nativeLibs;
+    private Throttle throttle;
+    private ExecutorService executor;
+
+    public Updater(Cache cache, URL descriptor, URL splash, List<Resource> extensions, List<Resource> jars, List<Resource> nativeLibs) {
+        this.cache = cache;
+        this.descriptor = descriptor;
+        this.splash = splash;
+        this.extensions = extensions;
+        this.jars = jars;
+        this.nativeLibs = nativeLibs;
+        this.throttle = new Throttle(Long.getLong("jwsclient.update-rate", 0) * 1024);
+    }
+
+    public synchronized void start() {
+        if (executor != null)
+            return;
+
+        // not a daemon, an application that returns from main still gets its update
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "jwsclient-updater");
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                update();
+            }
+        });
+
+        // the thread goes away once the update is done
+        executor.shutdown();
+
+        Runtime.getRuntime().addShutdownHook(new Thread("jwsclient-updater-shutdown") {
+            @Override
+            public void run() {
+                finish(Integer.getInteger("jwsclient.update-grace", 30));
+            }
+        });
+    }
+
+    /**
+     * Holds transfers back, for when the application needs the bandwidth.
+     * Pauses nest, the update goes on once each one is resumed.
+     */
+    public void pause() {
+        throttle.pause();
+    }
+
+    public void resume() {
+        throttle.resume();
+    }
+
+    /**
+     * Lets the update run at full speed and waits for it at most the given number of seconds.
+     */
+    public boolean finish(int seconds) {
+        ExecutorService running;
+
+        synchronized (this) {
+            running = executor;
+        }
+
+        if (running == null || running.isTerminated())
+            return true;
+
+        // nobody competes for the bandwidth anymore
+        throttle.lift();
+
+        try {
+            System.out.println("Waiting for the background update to finish...");
+            return running.awaitTermination(seconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void update() {
+        System.out.println("Doing background update...");
+
+        List<Resource> resources = new ArrayList<Resource>();
+        resources.add(new Resource(descriptor));
+        if (splash != null)
+            resources.add(new Resource(splash));
+        resources.addAll(extensions);
+        resources.addAll(nativeLibs);
+        // lazy jars the application never asked for stay out of it
+        for (Resource jar : jars) {
+            if (!jar.isLazy() || cache.isDownloaded(jar))
+                resources.add(jar);
+        }
+
+        try {
+            int connections = Integer.getInteger("jwsclient.update-connections", 2);
+
+            // fresh entries cost nothing
+            List<File> files = cache.downloadAll(resources, true, connections, throttle);
+
+            // the descriptor may have changed, what it wants now is what the next launch needs
+            JNLP jnlp = JNLP.load(files.get(0), descriptor, cache.getSha1(descriptor));
+            ResourceGraph graph = new ResourceGraph(cache, descriptor, jnlp);
+            graph.resolve();
+
+            List<Resource> eager = new ArrayList<Resource>();
+            for (Resource jar : graph.getJars()) {
+                if (!jar.isLazy())
+                    eager.add(jar);
+            }
+
+            // only new resources are left to fetch, the rest was revalidated above
+            List<Resource> wanted = new ArrayList<Resource>(eager);
+            wanted.addAll(graph.getNativeLibs());
+            cache.downloadAll(wanted, false, connections, throttle);
+
+            List<URL> references = new ArrayList<URL>();
+            for (Resource extension : graph.getExtensions())
+                references.add(extension.getLocation());
+            for (Resource jar : graph.getJars())
+                references.add(jar.getLocation());
+            for (Resource lib : graph.getNativeLibs())
+                references.add(lib.getLocation());
+            if (jnlp.getSplash() != null)
+                references.add(jnlp.getSplash());
+            cache.setReferences(descriptor, references);
+
+            // picked up as a whole by the next launch
+            cache.stageGeneration(descriptor, eager);
+            cache.sweep();
+
+            System.out.println("Background update done.");
+        } catch (IOException e) {
+            System.out.println("Background update failed: " + e.getMessage());
+        }
+    }
+}
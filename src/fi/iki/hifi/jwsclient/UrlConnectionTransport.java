@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2013 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package fi.iki.hifi.jwsclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * HTTP over HttpURLConnection, works on every VM.
+ *
+ * Connections are reused through the JDK keep-alive cache as long as every
+ * response stream gets closed, disconnect() would throw the socket away.
+ *
+ * @author Toni Spets <toni.spets@iki.fi>
+ */
+final public class UrlConnectionTransport extends Transport {
+
+    public UrlConnectionTransport(int connectTimeout, int readTimeout, Proxy proxy) {
+        super(connectTimeout, readTimeout, proxy);
+    }
+
+    @Override
+    public Response get(URL url, Map<String, String> headers) throws IOException {
+        HttpURLConnection con = (HttpURLConnection)(proxy != null ? url.openConnection(proxy) : url.openConnection());
+
+        for (Map.Entry<String, String> header : headers.entrySet())
+            con.addRequestProperty(header.getKey(), header.getValue());
+
+        con.setConnectTimeout(connectTimeout);
+        con.setReadTimeout(readTimeout);
+        con.connect();
+
+        // reads the status line and headers
+        con.getResponseCode();
+
+        return new UrlConnectionResponse(con);
+    }
+
+    private static class UrlConnectionResponse implements Response {
+
+        private HttpURLConnection con;
+
+        private UrlConnectionResponse(HttpURLConnection con) {
+            this.con = con;
+        }
+
+        @Override
+        public int getStatus() {
+            try {
+                return con.getResponseCode();
+            } catch (IOException e) {
+                // already read when we were created
+                return -1;
+            }
+        }
+
+        @Override
+        public String getMessage() {
+            try {
+                return con.getResponseMessage();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return con.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return con.getInputStream();
+        }
+
+        @Override
+        public void close() {
+            try {
+                InputStream in = getStatus() >= 400 ? con.getErrorStream() : con.getInputStream();
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
+                con.disconnect();
+            }
+        }
+    }
+}